@@ -0,0 +1,54 @@
+package pri.xiongcheng;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 缓冲区字节比较，按8字节一次读取，堆内与堆外缓冲区都可使用
+ */
+final class ByteBufferUtils {
+
+    private static final VarHandle LONG_BE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private ByteBufferUtils() {
+    }
+
+    /**
+     * 返回第一个不同字节相对于起始位置的下标，完全相同返回-1
+     */
+    static int mismatch(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        int i = 0;
+        for (; i <= length - Long.BYTES; i += Long.BYTES) {
+            long x = (long) LONG_BE.get(a, aOffset + i);
+            long y = (long) LONG_BE.get(b, bOffset + i);
+            if (x != y) {
+                return i + (Long.numberOfLeadingZeros(x ^ y) >>> 3);
+            }
+        }
+        for (; i < length; i++) {
+            if (a.get(aOffset + i) != b.get(bOffset + i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean equals(ByteBuffer a, int aOffset, int aLength, ByteBuffer b, int bOffset, int bLength) {
+        return aLength == bLength && mismatch(a, aOffset, b, bOffset, aLength) < 0;
+    }
+
+    /**
+     * 按无符号字节的字典序比较，公共前缀相同时较短的在前
+     */
+    static int compare(ByteBuffer a, int aOffset, int aLength, ByteBuffer b, int bOffset, int bLength) {
+        int i = mismatch(a, aOffset, b, bOffset, Math.min(aLength, bLength));
+        if (i < 0) {
+            return Integer.compare(aLength, bLength);
+        }
+        return Integer.compare(a.get(aOffset + i) & 0xFF, b.get(bOffset + i) & 0xFF);
+    }
+}
@@ -1,6 +1,10 @@
 package pri.xiongcheng;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * @author xiongcheng
@@ -11,32 +15,18 @@ public class CityHashUtils {
     private static final long k2 = 0x9ae16a3b2f90404fL;
     private static final long k3 = 0xc949d7c7509e6557L;
 
+    private static final VarHandle LONG_LE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
     /**
-     * byte[]转long,小端在前
-     * @param b
-     * @param i
-     * @return
+     * 按小端一次读取8个字节，堆内与堆外缓冲区都可使用
      */
-    private static long toLongLE(byte[] b, int i) {
-        return (((long)b[i+7] << 56) +
-                ((long)(b[i+6] & 255) << 48) +
-                ((long)(b[i+5] & 255) << 40) +
-                ((long)(b[i+4] & 255) << 32) +
-                ((long)(b[i+3] & 255) << 24) +
-                ((b[i+2] & 255) << 16) +
-                ((b[i+1] & 255) <<  8) +
-                ((b[i+0] & 255) <<  0));
-    }
-    private static long toIntLE(byte[] b, int i) {
-        return (((b[i+3] & 255L) << 24) + ((b[i+2] & 255L) << 16) + ((b[i+1] & 255L) << 8) + ((b[i+0] & 255L) << 0));
-    }
-
-    private static long fetch64(byte[] s, int pos) {
-        return toLongLE(s, pos);
+    private static long fetch64(ByteBuffer s, int pos) {
+        return (long) LONG_LE.get(s, pos);
     }
 
-    private static long fetch32(byte[] s, int pos) {
-        return toIntLE(s, pos);
+    private static long fetch32(ByteBuffer s, int pos) {
+        return (int) INT_LE.get(s, pos) & 0xFFFFFFFFL;
     }
 
     private static int staticCastToInt(byte b) {
@@ -76,7 +66,7 @@ public class CityHashUtils {
     }
 
 
-    private static long hashLen0to16(byte[] s, int pos, int len) {
+    private static long hashLen0to16(ByteBuffer s, int pos, int len) {
         if (len > 8) {
             long a = fetch64(s,pos );
             long b = fetch64(s, pos + len - 8);
@@ -90,9 +80,9 @@ public class CityHashUtils {
         }
 
         if (len > 0) {
-            byte a = s[pos];
-            byte b = s[pos + (len >>> 1)];
-            byte c = s[pos + len - 1];
+            byte a = s.get(pos);
+            byte b = s.get(pos + (len >>> 1));
+            byte c = s.get(pos + len - 1);
             int y = staticCastToInt(a) + (staticCastToInt(b) << 8);
             int z = len + (staticCastToInt(c) << 2);
             return shiftMix(y * k2 ^ z * k3) * k2;
@@ -106,7 +96,7 @@ public class CityHashUtils {
 
     // This probably works well for 16-byte strings as well, but it may be overkill
     // in that case.
-    private static long hashLen17to32(byte[] s, int pos, int len){
+    private static long hashLen17to32(ByteBuffer s, int pos, int len){
         long a = fetch64(s, pos) * k1;
         long b = fetch64(s, pos+8);
         long c = fetch64(s, pos+len - 8) * k2;
@@ -119,7 +109,7 @@ public class CityHashUtils {
 
 
 
-    private static long hashLen33to64(byte[] s, int pos, int len) {
+    private static long hashLen33to64(ByteBuffer s, int pos, int len) {
         long z = fetch64(s,pos + 24);
         long a = fetch64(s, pos) + (len + fetch64(s, pos + len - 16)) * k0;
 
@@ -130,13 +120,13 @@ public class CityHashUtils {
         a += fetch64(s,pos + 16);
         long vf = a + z;
         long vs = b + rotate(a, 31) + c;
-        a = fetch64(s,pos + 16) + fetch64(s , len - 32);
-        z = fetch64(s , len - 8);
+        a = fetch64(s,pos + 16) + fetch64(s , pos + len - 32);
+        z = fetch64(s , pos + len - 8);
         b = rotate(a + z, 52);
         c = rotate(a, 37);
-        a += fetch64(s , len - 24);
+        a += fetch64(s , pos + len - 24);
         c += rotate(a, 7);
-        a += fetch64(s , len - 16);
+        a += fetch64(s , pos + len - 16);
         long wf = a + z;
         long ws = b + rotate(a, 31) + c;
         long r = shiftMix((vf + ws) * k2 + (wf + vs) * k0);
@@ -145,13 +135,13 @@ public class CityHashUtils {
 
 
     /**
-     * cityHash64
-     * @param s
+     * cityHash64，按绝对位置读取[pos, pos + len)，不改变缓冲区的position
+     * @param s 堆内或堆外缓冲区
      * @param pos
      * @param len
      * @return
      */
-    public static long cityHash64(byte[] s, int pos, int len) {
+    public static long cityHash64(ByteBuffer s, int pos, int len) {
         if (len <= 32) {
             if (len <= 16) {
                 return hashLen0to16(s, pos, len);
@@ -196,6 +186,17 @@ public class CityHashUtils {
                 hashLen16(v[1], w[1]) + x);
     }//cityHash64
 
+    /**
+     * 计算[position, limit)之间字节的cityHash64
+     */
+    public static long cityHash64(ByteBuffer s) {
+        return cityHash64(s, s.position(), s.remaining());
+    }
+
+    public static long cityHash64(byte[] s, int pos, int len) {
+        return cityHash64(ByteBuffer.wrap(s), pos, len);
+    }
+
     public static long cityHash64(byte[] s){
         int len = s.length;
         int pos = 0;
@@ -203,6 +204,15 @@ public class CityHashUtils {
         return cityHash64(s,pos,len);
     }
 
+    /**
+     * 64位整数混合函数(SplitMix64的终结步骤)，用于定长整数键，不经过序列化
+     */
+    public static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
 
     private static long[] weakHashLen32WithSeeds(
             long w, long x, long y, long z,
@@ -221,7 +231,7 @@ public class CityHashUtils {
 
 
     // Return a 16-byte hash for s[0] ... s[31], a, and b.  Quick and dirty.
-    private static long[] weakHashLen32WithSeeds(byte[] s, int pos, long a, long b) {
+    private static long[] weakHashLen32WithSeeds(ByteBuffer s, int pos, long a, long b) {
         return weakHashLen32WithSeeds(
                 fetch64(s, pos + 0),
                 fetch64(s, pos + 8),
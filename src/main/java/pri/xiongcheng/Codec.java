@@ -0,0 +1,29 @@
+package pri.xiongcheng;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 键值编解码器，直接在目标缓冲区的绝对位置上读写，不改变缓冲区的position
+ * <p>
+ * 相等的对象必须编码为相同的字节，map按编码后的字节计算哈希
+ */
+public interface Codec<T> extends Serializable {
+
+    /**
+     * 返回value编码后的准确字节数
+     */
+    int encodedSize(T value);
+
+    /**
+     * 将value编码写入dst，从offset开始写入encodedSize(value)个字节
+     */
+    void encode(T value, ByteBuffer dst, int offset);
+
+    /**
+     * 从src的[offset, offset + length)解码对象
+     */
+    T decode(ByteBuffer src, int offset, int length);
+}
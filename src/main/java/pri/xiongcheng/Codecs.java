@@ -0,0 +1,239 @@
+package pri.xiongcheng;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 内置编解码器，未指定编解码器时回退到Java序列化
+ */
+public final class Codecs {
+
+    private Codecs() {
+    }
+
+    public static Codec<String> string() {
+        return StringCodec.INSTANCE;
+    }
+
+    public static Codec<Long> longs() {
+        return LongCodec.INSTANCE;
+    }
+
+    public static Codec<Integer> integers() {
+        return IntegerCodec.INSTANCE;
+    }
+
+    public static Codec<byte[]> byteArray() {
+        return ByteArrayCodec.INSTANCE;
+    }
+
+    public static Codec<ByteBuffer> byteBuffer() {
+        return ByteBufferCodec.INSTANCE;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Codec<T> serialization() {
+        return (Codec<T>) SerializationCodec.INSTANCE;
+    }
+
+    /**
+     * 按类型选择内置编解码器，没有对应实现时使用Java序列化
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Codec<T> forClass(Class<T> type) {
+        if (type == String.class) {
+            return (Codec<T>) string();
+        } else if (type == Long.class) {
+            return (Codec<T>) longs();
+        } else if (type == Integer.class) {
+            return (Codec<T>) integers();
+        } else if (type == byte[].class) {
+            return (Codec<T>) byteArray();
+        } else if (type == ByteBuffer.class) {
+            return (Codec<T>) byteBuffer();
+        }
+        return serialization();
+    }
+
+    /**
+     * UTF-8编码，不成对的代理字符按String.getBytes的方式替换为'?'
+     */
+    enum StringCodec implements Codec<String> {
+        INSTANCE;
+
+        @Override
+        public int encodedSize(String value) {
+            int n = value.length(), size = n;
+            for (int i = 0; i < n; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    continue;
+                }
+                if (c < 0x800) {
+                    size += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < n
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    size += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    size += 2;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public void encode(String value, ByteBuffer dst, int offset) {
+            int n = value.length();
+            for (int i = 0; i < n; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    dst.put(offset++, (byte) c);
+                } else if (c < 0x800) {
+                    dst.put(offset++, (byte) (0xC0 | (c >> 6)));
+                    dst.put(offset++, (byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    dst.put(offset++, (byte) (0xF0 | (cp >> 18)));
+                    dst.put(offset++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    dst.put(offset++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    dst.put(offset++, (byte) (0x80 | (cp & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    dst.put(offset++, (byte) '?');
+                } else {
+                    dst.put(offset++, (byte) (0xE0 | (c >> 12)));
+                    dst.put(offset++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                    dst.put(offset++, (byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        @Override
+        public String decode(ByteBuffer src, int offset, int length) {
+            if (src.hasArray()) {
+                return new String(src.array(), src.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+            }
+            byte[] bytes = new byte[length];
+            src.get(offset, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    enum LongCodec implements Codec<Long> {
+        INSTANCE;
+
+        @Override
+        public int encodedSize(Long value) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void encode(Long value, ByteBuffer dst, int offset) {
+            dst.putLong(offset, value);
+        }
+
+        @Override
+        public Long decode(ByteBuffer src, int offset, int length) {
+            return src.getLong(offset);
+        }
+    }
+
+    enum IntegerCodec implements Codec<Integer> {
+        INSTANCE;
+
+        @Override
+        public int encodedSize(Integer value) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void encode(Integer value, ByteBuffer dst, int offset) {
+            dst.putInt(offset, value);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer src, int offset, int length) {
+            return src.getInt(offset);
+        }
+    }
+
+    enum ByteArrayCodec implements Codec<byte[]> {
+        INSTANCE;
+
+        @Override
+        public int encodedSize(byte[] value) {
+            return value.length;
+        }
+
+        @Override
+        public void encode(byte[] value, ByteBuffer dst, int offset) {
+            dst.put(offset, value);
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer src, int offset, int length) {
+            byte[] bytes = new byte[length];
+            src.get(offset, bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * 编码[position, limit)之间的字节，解码得到一个新的堆内缓冲区
+     */
+    enum ByteBufferCodec implements Codec<ByteBuffer> {
+        INSTANCE;
+
+        @Override
+        public int encodedSize(ByteBuffer value) {
+            return value.remaining();
+        }
+
+        @Override
+        public void encode(ByteBuffer value, ByteBuffer dst, int offset) {
+            dst.put(offset, value, value.position(), value.remaining());
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer src, int offset, int length) {
+            return ByteBuffer.allocate(length).put(0, src, offset, length);
+        }
+    }
+
+    /**
+     * Java序列化，encodedSize的序列化结果按线程暂存，紧接着的encode直接使用
+     */
+    enum SerializationCodec implements Codec<Object> {
+        INSTANCE;
+
+        private static final ThreadLocal<Object[]> LAST = ThreadLocal.withInitial(() -> new Object[2]);
+
+        @Override
+        public int encodedSize(Object value) {
+            Object[] last = LAST.get();
+            byte[] bytes = CityHashUtils.toByteArray(value);
+            last[0] = value;
+            last[1] = bytes;
+            return bytes.length;
+        }
+
+        @Override
+        public void encode(Object value, ByteBuffer dst, int offset) {
+            Object[] last = LAST.get();
+            byte[] bytes = last[0] == value && last[1] != null ?
+                    (byte[]) last[1] : CityHashUtils.toByteArray(value);
+            last[0] = last[1] = null;
+            dst.put(offset, bytes);
+        }
+
+        @Override
+        public Object decode(ByteBuffer src, int offset, int length) {
+            byte[] bytes = new byte[length];
+            src.get(offset, bytes);
+            return CityHashUtils.toObject(bytes);
+        }
+    }
+}
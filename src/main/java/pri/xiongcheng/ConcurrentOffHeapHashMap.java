@@ -1,12 +1,31 @@
 package pri.xiongcheng;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
+import java.lang.ref.WeakReference;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author xiongcheng
@@ -14,48 +33,341 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p>
  * V1.2 完成红黑树部分内容，优化线程安全机制
  */
-public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements Cloneable, Serializable {
+public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements Cloneable, Serializable, Closeable {
 
-    private volatile Node<K, V>[] table;
+    private transient volatile Node<K, V>[] table;
+    private transient volatile Node<K, V>[] nextTable;
+    /**
+     * 表初始化与扩容的控制位：-1表示正在初始化，小于-1时高16位为扩容标记、低16位为参与迁移的线程数加1
+     */
+    private transient volatile int sizeCtl;
+    private transient volatile int transferIndex;
+    private transient OffHeapAllocator allocator = new OffHeapAllocator();
+    /**
+     * 持久化模式下的映射文件，内存模式为null
+     */
+    private transient MappedFileStorage storage;
+    /**
+     * 写前日志，未开启时为null
+     */
+    private transient WriteAheadLog log;
+    /**
+     * 有界模式的淘汰状态，无界时为null
+     */
+    private transient Eviction eviction;
+    /**
+     * 过期状态，第一次设置过期时间时创建
+     */
+    private transient volatile Expiry<K, V> expiry;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
     private int capacity;
-    private final int DEFAULT_CAPACITY = 16;
-    private final AtomicInteger size = new AtomicInteger(0);
+    private static final int DEFAULT_CAPACITY = 16;
+    /**
+     * 元素个数为baseCount与各计数单元之和，无竞争时只更新baseCount，出现竞争后按线程分散到counterCells
+     */
+    private transient volatile long baseCount;
+    private transient volatile int cellsBusy;
+    private transient volatile CounterCell[] counterCells;
     private float loadFactor;
-    private final float DEFAULT_LOAD_FACTOR = 0.75f;
+    private static final float DEFAULT_LOAD_FACTOR = 0.75f;
     private volatile int threshold;
     private static final int MIN_TREEIFY_CAPACITY = 64;
     private static final int TREEIFY_THRESHOLD = 8;
     private static final int UNTREEIFY_THRESHOLD = 6;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    private static final int MIN_TRANSFER_STRIDE = 16;
+    private static final int RESIZE_STAMP_BITS = 16;
+    private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;
+    private static final int RESIZE_STAMP_SHIFT = 32 - RESIZE_STAMP_BITS;
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+    static final int VALUE_HEADER = 4;
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+    private static final VarHandle TAB = MethodHandles.arrayElementVarHandle(Node[].class);
+    private static final VarHandle SIZE_CTL;
+    private static final VarHandle TRANSFER_INDEX;
+    private static final VarHandle BASE_COUNT;
+    private static final VarHandle CELLS_BUSY;
+    private static final VarHandle CELL_VALUE;
+    private static final VarHandle EXPIRY;
+    private static final long EXPIRE_PERIOD_MILLIS = 10L;
+    private static final AtomicInteger PROBE_SEED = new AtomicInteger();
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(
+            () -> new int[]{PROBE_SEED.addAndGet(0x9e3779b9) | 1});
+
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            SIZE_CTL = l.findVarHandle(ConcurrentOffHeapHashMap.class, "sizeCtl", int.class);
+            TRANSFER_INDEX = l.findVarHandle(ConcurrentOffHeapHashMap.class, "transferIndex", int.class);
+            BASE_COUNT = l.findVarHandle(ConcurrentOffHeapHashMap.class, "baseCount", long.class);
+            CELLS_BUSY = l.findVarHandle(ConcurrentOffHeapHashMap.class, "cellsBusy", int.class);
+            CELL_VALUE = l.findVarHandle(CounterCell.class, "value", long.class);
+            EXPIRY = l.findVarHandle(ConcurrentOffHeapHashMap.class, "expiry", Expiry.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     public ConcurrentOffHeapHashMap() {
-        loadFactor = DEFAULT_LOAD_FACTOR;
-        capacity = DEFAULT_CAPACITY;
-        threshold = (int) (capacity * loadFactor);
+        this(Codecs.serialization(), Codecs.serialization());
     }
 
     public ConcurrentOffHeapHashMap(int capacity) {
-        this.capacity = capacity;
-        loadFactor = DEFAULT_LOAD_FACTOR;
-        threshold = (int) (capacity * loadFactor);
+        this(capacity, Codecs.serialization(), Codecs.serialization());
     }
 
     public ConcurrentOffHeapHashMap(int capacity, float loadFactor) {
+        this(capacity, loadFactor, Codecs.serialization(), Codecs.serialization());
+    }
+
+    public ConcurrentOffHeapHashMap(Codec<K> keyCodec, Codec<V> valueCodec) {
+        this(DEFAULT_CAPACITY, keyCodec, valueCodec);
+    }
+
+    public ConcurrentOffHeapHashMap(int capacity, Codec<K> keyCodec, Codec<V> valueCodec) {
+        this(capacity, DEFAULT_LOAD_FACTOR, keyCodec, valueCodec);
+    }
+
+    public ConcurrentOffHeapHashMap(int capacity, float loadFactor, Codec<K> keyCodec, Codec<V> valueCodec) {
         this.capacity = capacity;
         this.loadFactor = loadFactor;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
         threshold = (int) (capacity * loadFactor);
     }
 
-    static long hash(Object key) {
+    /**
+     * 有界模式：键值字节数之和超过maximumBytes或条目数超过maximumEntries时按CLOCK淘汰，0表示不限制该项。
+     * 新插入的条目要挤掉的条目访问频率不低于它时，改为淘汰新条目本身(TinyLFU准入)；被淘汰条目的原始字节交给listener
+     */
+    public ConcurrentOffHeapHashMap(int capacity, Codec<K> keyCodec, Codec<V> valueCodec,
+                                    long maximumBytes, long maximumEntries, EvictionListener listener) {
+        this(capacity, keyCodec, valueCodec);
+        if (maximumBytes < 0 || maximumEntries < 0 || (maximumBytes == 0 && maximumEntries == 0)) {
+            throw new IllegalArgumentException("Illegal bound: " + maximumBytes + " bytes, " + maximumEntries + " entries");
+        }
+        eviction = new Eviction(maximumBytes, maximumEntries, listener);
+        eviction.sketch.ensureCapacity(maximumEntries > 0 ? maximumEntries : capacity);
+    }
+
+    public static <K, V> ConcurrentOffHeapHashMap<K, V> open(Path file, Codec<K> keyCodec, Codec<V> valueCodec)
+            throws IOException {
+        return open(file, DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR, keyCodec, valueCodec);
+    }
+
+    /**
+     * 持久化模式：键值块分配在映射文件中。文件不存在或为空时新建，否则从上次close()写出的目录恢复，
+     * 节点按存储的哈希挂回原来的桶，不重新计算哈希。恢复后的表长度沿用关闭时的长度，capacity只对新文件有效
+     */
+    public static <K, V> ConcurrentOffHeapHashMap<K, V> open(Path file, int capacity, float loadFactor,
+                                                           Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        ConcurrentOffHeapHashMap<K, V> map = new ConcurrentOffHeapHashMap<>(capacity, loadFactor, keyCodec, valueCodec);
+        MappedFileStorage storage;
+        if (Files.exists(file) && Files.size(file) > 0) {
+            storage = MappedFileStorage.open(file, keyCodec, valueCodec);
+            try {
+                map.restore(storage);
+            } catch (IOException | RuntimeException e) {
+                storage.close();
+                throw e;
+            }
+        } else {
+            storage = MappedFileStorage.create(file, keyCodec, valueCodec);
+            map.allocator = new OffHeapAllocator(storage);
+        }
+        map.storage = storage;
+        return map;
+    }
+
+    private void restore(MappedFileStorage storage) throws IOException {
+        OffHeapAllocator a = new OffHeapAllocator(storage);
+        int n = storage.tableLength();
+        Node<K, V>[] tab = n == 0 ? null : (Node<K, V>[]) new Node<?, ?>[n];
+        int[] counts = n == 0 ? null : new int[n];
+        storage.restore(a, (hash, keyAddress, keyLength, valueAddress) -> {
+            int i = (n - 1) & (int) hash;
+            tab[i] = new Node<>(hash, keyAddress, keyLength, valueAddress, tab[i]);
+            counts[i]++;
+        });
+        allocator = a;
+        if (tab != null) {
+            if (n >= MIN_TREEIFY_CAPACITY) {
+                for (int i = 0; i < n; i++) {
+                    if (counts[i] >= TREEIFY_THRESHOLD) {
+                        tab[i] = toTreeBin(tab[i]);
+                    }
+                }
+            }
+            baseCount = storage.entryCount();
+            threshold = thresholdFor(n);
+            table = tab;
+        }
+    }
+
+    public static <K, V> ConcurrentOffHeapHashMap<K, V> openLogged(Path directory, SyncPolicy policy,
+                                                                 Codec<K> keyCodec, Codec<V> valueCodec)
+            throws IOException {
+        return openLogged(directory, policy, 100L, DEFAULT_CAPACITY, keyCodec, valueCodec);
+    }
+
+    /**
+     * 写前日志模式：键值仍在普通堆外内存中，put与remove在桶锁内把编码后的修改追加到directory下的日志，
+     * 按policy落盘。启动时加载目录中最新的快照并重放之后的日志，syncIntervalMillis是后台写出的间隔，
+     * 后台线程也负责在日志积累较多时写快照并删除旧段
+     */
+    public static <K, V> ConcurrentOffHeapHashMap<K, V> openLogged(Path directory, SyncPolicy policy,
+                                                                 long syncIntervalMillis, int capacity,
+                                                                 Codec<K> keyCodec, Codec<V> valueCodec)
+            throws IOException {
+        ConcurrentOffHeapHashMap<K, V> map = new ConcurrentOffHeapHashMap<>(capacity, keyCodec, valueCodec);
+        try {
+            map.log = WriteAheadLog.open(directory, policy, syncIntervalMillis, keyCodec, valueCodec,
+                    new WriteAheadLog.Replay() {
+                        @Override
+                        public void snapshot(Path file) throws IOException {
+                            map.loadFrom(file);
+                        }
+
+                        @Override
+                        public void put(long hash, ByteBuffer key, ByteBuffer value) {
+                            long old = map.putBlocks(hash, key, 0L, map.storeValueBytes(value, 0, value.limit()));
+                            if (old != 0L) {
+                                map.allocator.free(old);
+                            }
+                        }
+
+                        @Override
+                        public void remove(long hash, ByteBuffer key) {
+                            long old = map.removeBlocks(hash, key);
+                            if (old != 0L) {
+                                map.allocator.free(old);
+                            }
+                        }
+                    }, map::snapshotTo);
+        } catch (IOException | RuntimeException e) {
+            map.clear();
+            throw e;
+        }
+        return map;
+    }
+
+    /**
+     * 立即切换日志段并写快照，删除快照已经包含的日志，未开启写前日志时抛出IllegalStateException
+     */
+    public void checkpoint() throws IOException {
+        WriteAheadLog l = log;
+        if (l == null) {
+            throw new IllegalStateException("write-ahead log is not enabled");
+        }
+        l.compact();
+    }
+
+    /**
+     * 持久化模式下写出目录并关闭文件，写前日志模式下写出并force剩余的日志，内存模式下释放所有堆外块。
+     * 调用时不能有并发的写操作，关闭后的map为空的内存模式map，不再引用文件
+     */
+    @Override
+    public void close() throws IOException {
+        stopExpiry();
+        MappedFileStorage s = storage;
+        if (s == null) {
+            WriteAheadLog l = log;
+            log = null;
+            try {
+                if (l != null) {
+                    l.close();
+                }
+            } finally {
+                clear();
+            }
+            return;
+        }
+        Node<K, V>[] tab = table;
+        try {
+            s.checkpoint(allocator, tab == null ? 0 : tab.length, visitor -> {
+                if (tab != null) {
+                    Traverser<K, V> it = new Traverser<>(tab, tab.length, 0, tab.length);
+                    for (Node<K, V> e; (e = it.advance()) != null; ) {
+                        visitor.visit(e.hash, e.keyAddress, e.keyLength, e.valueAddress);
+                    }
+                }
+            });
+        } finally {
+            s.close();
+            storage = null;
+            table = null;
+            baseCount = 0L;
+            counterCells = null;
+            allocator = new OffHeapAllocator();
+        }
+    }
+
+    /**
+     * 将键编码到线程私有的临时缓冲区，返回的缓冲区[0, limit)为键的字节，下一次编码前有效
+     */
+    final ByteBuffer encodeKey(Object key) {
+        K k = (K) key;
+        int length = keyCodec.encodedSize(k);
+        ByteBuffer buf = scratch(length);
+        keyCodec.encode(k, buf, 0);
+        buf.limit(length);
+        return buf;
+    }
+
+    /**
+     * 对键编码后的字节计算哈希
+     */
+    static long hash(ByteBuffer k) {
+        return hash(k, 0, k.limit());
+    }
+
+    static long hash(ByteBuffer buf, int offset, int length) {
         long h;
-        return key == null ? 0 : (h = CityHashUtils.cityHash64(CityHashUtils.toByteArray(key))) ^ h >>> 16;
+        return (h = CityHashUtils.cityHash64(buf, offset, length)) ^ h >>> 16;
+    }
+
+    final long hash(Object key) {
+        return hash(encodeKey(key));
+    }
+
+    static ByteBuffer scratch(int length) {
+        ByteBuffer buf = SCRATCH.get();
+        if (buf.capacity() < length) {
+            SCRATCH.set(buf = ByteBuffer.allocate(Math.max(length, buf.capacity() << 1)));
+        }
+        return buf.clear();
     }
 
     @Override
     public ConcurrentOffHeapHashMap<K, V> clone() {
         try {
             ConcurrentOffHeapHashMap<K, V> clone = (ConcurrentOffHeapHashMap<K, V>) super.clone();
-            clone.table = (Node<K, V>[]) new Node[this.table.length];
-            System.arraycopy(this.table, 0, clone.table, 0, this.table.length);
+            clone.allocator = new OffHeapAllocator();
+            clone.storage = null;
+            clone.log = null;
+            clone.expiry = null;
+            Eviction ev = eviction;
+            clone.eviction = ev == null ? null : new Eviction(ev.maximumBytes, ev.maximumEntries, ev.listener);
+            clone.baseCount = 0L;
+            clone.cellsBusy = 0;
+            clone.counterCells = null;
+            clone.table = clone.nextTable = null;
+            clone.sizeCtl = clone.transferIndex = 0;
+            Node<K, V>[] tab = this.table;
+            if (tab == null) {
+                return clone;
+            }
+            clone.tryPresize(tab.length);
+            Traverser<K, V> it = new Traverser<>(tab, tab.length, 0, tab.length);
+            for (Node<K, V> e; (e = it.advance()) != null; ) {
+                long address = e.keyAddress;
+                ByteBuffer k = allocator.buffer(address).slice(OffHeapAllocator.offset(address), e.keyLength);
+                long v = e.valueAddress;
+                ByteBuffer vb = allocator.buffer(v);
+                int vo = OffHeapAllocator.offset(v);
+                clone.putBlocks(e.hash, k, 0L, clone.storeValueBytes(vb, vo + VALUE_HEADER, vb.getInt(vo)));
+            }
             return clone;
         } catch (CloneNotSupportedException e) {
             throw new AssertionError();
@@ -63,29 +375,71 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
     }
 
 
+    /**
+     * 链表节点，键值字节存放在堆外，节点只保存地址与长度
+     * <p>
+     * 值块的前4个字节存放值的长度，地址与长度随valueAddress一次发布。
+     * next为volatile，新节点挂到链表上时其字段对无锁读线程可见
+     */
     static class Node<K, V> {
-        ByteBuffer keyBuffer;
-        ByteBuffer valueBuffer;
+        long keyAddress;
+        final int keyLength;
+        volatile long valueAddress;
         final long hash;
-        Node<K, V> next;
+        volatile Node<K, V> next;
+        /**
+         * 有界模式的CLOCK访问位，读命中时置位，淘汰指针经过时清除；不同线程之间的可见性延迟无妨
+         */
+        boolean referenced;
+        /**
+         * 过期时刻(System.nanoTime())，0表示不过期
+         */
+        volatile long expireAt;
 
-        public Node(long hash, K key, V value, Node<K, V> next) {
+        Node(long hash, long keyAddress, int keyLength, long valueAddress, Node<K, V> next) {
             this.hash = hash;
+            this.keyAddress = keyAddress;
+            this.keyLength = keyLength;
+            this.valueAddress = valueAddress;
             this.next = next;
-            this.keyBuffer = ByteBuffer.wrap(CityHashUtils.toByteArray(key));
-            this.valueBuffer = ByteBuffer.wrap(CityHashUtils.toByteArray(value));
         }
 
-        public void setValue(V value) {
-            valueBuffer = ByteBuffer.wrap(CityHashUtils.toByteArray(value));
+        V getValue(ConcurrentOffHeapHashMap<K, V> map) {
+            long address = valueAddress;
+            ByteBuffer buf = map.allocator.buffer(address);
+            int offset = OffHeapAllocator.offset(address);
+            return map.valueCodec.decode(buf, offset + VALUE_HEADER, buf.getInt(offset));
+        }
+
+        K getKey(ConcurrentOffHeapHashMap<K, V> map) {
+            return map.keyCodec.decode(map.allocator.buffer(keyAddress),
+                    OffHeapAllocator.offset(keyAddress), keyLength);
+        }
+
+        /**
+         * 与编码后的探测键逐字节比较，k的[0, limit)为键的字节
+         */
+        final boolean keyEquals(OffHeapAllocator allocator, ByteBuffer k) {
+            long address = keyAddress;
+            return keyLength == k.limit() && ByteBufferUtils.mismatch(allocator.buffer(address),
+                    OffHeapAllocator.offset(address), k, 0, keyLength) < 0;
         }
 
-        public V getValue() {
-            return (V) CityHashUtils.toObject(this.valueBuffer.array());
+        /**
+         * 按键字节的字典序与探测键比较，返回探测键相对本节点的大小
+         */
+        final int compareKey(OffHeapAllocator allocator, ByteBuffer k) {
+            long address = keyAddress;
+            return ByteBufferUtils.compare(k, 0, k.limit(),
+                    allocator.buffer(address), OffHeapAllocator.offset(address), keyLength);
         }
 
-        public K getKey() {
-            return (K) CityHashUtils.toObject(this.keyBuffer.array());
+        /**
+         * 归还键值块
+         */
+        void free(OffHeapAllocator allocator) {
+            allocator.free(keyAddress);
+            allocator.free(valueAddress);
         }
 
         public final long hash() {
@@ -93,8 +447,42 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
         }
     }
 
+    /**
+     * 复制已编码的键到新分配的块中
+     */
+    final long storeKey(ByteBuffer k) {
+        long address = allocator.allocate(k.limit());
+        allocator.buffer(address).put(OffHeapAllocator.offset(address), k, 0, k.limit());
+        return address;
+    }
+
+    /**
+     * 复制已编码的值字节到新分配的值块中
+     */
+    final long storeValueBytes(ByteBuffer src, int offset, int length) {
+        long address = allocator.allocate(VALUE_HEADER + length);
+        ByteBuffer buf = allocator.buffer(address);
+        int o = OffHeapAllocator.offset(address);
+        buf.putInt(o, length);
+        buf.put(o + VALUE_HEADER, src, offset, length);
+        return address;
+    }
+
+    final long storeValue(V value) {
+        int length = valueCodec.encodedSize(value);
+        long address = allocator.allocate(VALUE_HEADER + length);
+        ByteBuffer buf = allocator.buffer(address);
+        int offset = OffHeapAllocator.offset(address);
+        buf.putInt(offset, length);
+        valueCodec.encode(value, buf, offset + VALUE_HEADER);
+        return address;
+    }
+
     /**
      * 红黑树节点类
+     * <p>
+     * 桶头节点的lockState是树的读写锁：写线程在持有桶锁的基础上，旋转、删除前还要获取写锁；
+     * 读线程拿不到读锁时沿next链表线性查找，链表在任何时刻都是完整的
      */
     static final class TreeNode<K, V> extends Node<K, V> {
         TreeNode<K, V> parent;
@@ -102,80 +490,123 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
         TreeNode<K, V> right;
         TreeNode<K, V> prev;
         boolean red;
+        volatile int lockState;
+        volatile Thread waiter;
+
+        static final int WRITER = 1;
+        static final int WAITER = 2;
+        static final int READER = 4;
+
+        private static final VarHandle LOCK_STATE;
 
-        TreeNode(long hash, K key, V value, Node<K, V> next, TreeNode<K, V> parent) {
-            super(hash, key, value, next);
+        static {
+            try {
+                LOCK_STATE = MethodHandles.lookup().findVarHandle(TreeNode.class, "lockState", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        TreeNode(long hash, long keyAddress, int keyLength, long valueAddress,
+                 Node<K, V> next, TreeNode<K, V> parent) {
+            super(hash, keyAddress, keyLength, valueAddress, next);
             this.parent = parent;
             this.red = false;
         }
 
         /**
-         * 返回根节点
+         * 获取树的写锁，只在桶头上调用，调用方需持有桶锁
          */
-        final TreeNode<K, V> root() {
-            for (TreeNode<K, V> r = this, p; ; ) {
-                if ((p = r.parent) == null) {
-                    return r;
-                }
-                r = p;
+        private void lockRoot() {
+            if (!LOCK_STATE.compareAndSet(this, 0, WRITER)) {
+                contendedLock();
             }
         }
 
+        private void unlockRoot() {
+            lockState = 0;
+        }
+
         /**
-         * 确保根节点是给定的节点
+         * 等待读线程退出，最后一个读线程负责唤醒
          */
-        static <K, V> void moveRootToFront(Node<K, V>[] tab, TreeNode<K, V> root) {
-            int n;
-            if (root != null && tab != null && (n = tab.length) > 0) {
-                int index = (n - 1) & (int) root.hash;
-                TreeNode<K, V> first = (TreeNode<K, V>) tab[index];
-                if (root != first) {
-                    Node<K, V> rn;
-                    tab[index] = root;
-                    TreeNode<K, V> rp = root.prev;
-                    if ((rn = root.next) != null) {
-                        ((TreeNode<K, V>) rn).prev = rp;
+        private void contendedLock() {
+            boolean waiting = false;
+            for (int s; ; ) {
+                if (((s = lockState) & ~WAITER) == 0) {
+                    if (LOCK_STATE.compareAndSet(this, s, WRITER)) {
+                        if (waiting) {
+                            waiter = null;
+                        }
+                        return;
                     }
-                    if (rp != null) {
-                        rp.next = rn;
+                } else if ((s & WAITER) == 0) {
+                    if (LOCK_STATE.compareAndSet(this, s, s | WAITER)) {
+                        waiting = true;
+                        waiter = Thread.currentThread();
+                    }
+                } else if (waiting) {
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+        /**
+         * 无锁读，从桶头调用。有写线程时沿链表查找，否则持读锁在树上查找
+         */
+        final Node<K, V> findShared(ConcurrentOffHeapHashMap<K, V> map, long h, ByteBuffer k) {
+            for (Node<K, V> e = this; e != null; ) {
+                int s;
+                if (((s = lockState) & (WAITER | WRITER)) != 0) {
+                    if (e.hash == h && e.keyEquals(map.allocator, k)) {
+                        return e;
                     }
-                    if (first != null) {
-                        first.prev = root;
+                    e = e.next;
+                } else if (LOCK_STATE.compareAndSet(this, s, s + READER)) {
+                    TreeNode<K, V> p;
+                    try {
+                        p = getTreeNode(map, h, k);
+                    } finally {
+                        Thread w;
+                        if ((int) LOCK_STATE.getAndAdd(this, -READER) == (READER | WAITER) &&
+                                (w = waiter) != null) {
+                            LockSupport.unpark(w);
+                        }
                     }
-                    root.next = first;
-                    root.prev = null;
+                    return p;
                 }
-                assert checkInvariants(root);
+            }
+            return null;
+        }
+
+        /**
+         * 返回根节点
+         */
+        final TreeNode<K, V> root() {
+            for (TreeNode<K, V> r = this, p; ; ) {
+                if ((p = r.parent) == null) {
+                    return r;
+                }
+                r = p;
             }
         }
 
         /**
-         * 查找节点
+         * 查找节点，同哈希的节点按键字节的字典序排列
          */
-        final TreeNode<K, V> find(long h, Object k, Class<?> kc) {
+        final TreeNode<K, V> find(ConcurrentOffHeapHashMap<K, V> map, long h, ByteBuffer k) {
             TreeNode<K, V> p = this;
             do {
                 int ph, dir;
-                K pk;
-                TreeNode<K, V> pl = p.left, pr = p.right, q;
+                TreeNode<K, V> pl = p.left, pr = p.right;
                 if ((ph = (int) p.hash) > (int) h) {
                     p = pl;
                 } else if (ph < (int) h) {
                     p = pr;
-                } else if ((pk = p.getKey()) == k || (k != null && k.equals(pk))) {
+                } else if ((dir = p.compareKey(map.allocator, k)) == 0) {
                     return p;
-                } else if (pl == null) {
-                    p = pr;
-                } else if (pr == null) {
-                    p = pl;
-                } else if ((kc != null ||
-                        (kc = comparableClassFor(k)) != null) &&
-                        (dir = compareComparables(kc, k, pk)) != 0) {
-                    p = (dir < 0) ? pl : pr;
-                } else if ((q = pr.find(h, k, kc)) != null) {
-                    return q;
                 } else {
-                    p = pl;
+                    p = (dir < 0) ? pl : pr;
                 }
             } while (p != null);
             return null;
@@ -184,27 +615,16 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
         /**
          * 获取树节点
          */
-        final TreeNode<K, V> getTreeNode(long h, Object k) {
-            return ((parent != null) ? root() : this).find(h, k, null);
-        }
-
-        /**
-         * 比较两个键的大小
-         */
-        static int tieBreakOrder(Object a, Object b) {
-            int d;
-            if (a == null || b == null ||
-                    (d = a.getClass().getName().compareTo(b.getClass().getName())) == 0) {
-                d = (System.identityHashCode(a) <= System.identityHashCode(b) ?
-                        -1 : 1);
-            }
-            return d;
+        final TreeNode<K, V> getTreeNode(ConcurrentOffHeapHashMap<K, V> map, long h, ByteBuffer k) {
+            return ((parent != null) ? root() : this).find(map, h, k);
         }
 
         /**
-         * 将链表转换为红黑树
+         * 将链表转换为红黑树，链表顺序保持不变，返回根节点
+         * <p>
+         * 桶头始终是链表的第一个节点，根节点通过root()查找，桶头只在删除首节点或退化为链表时改变
          */
-        final void treeify(Node<K, V>[] tab) {
+        final TreeNode<K, V> treeify(ConcurrentOffHeapHashMap<K, V> map) {
             TreeNode<K, V> root = null;
             for (TreeNode<K, V> x = this, next; x != null; x = next) {
                 next = (TreeNode<K, V>) x.next;
@@ -214,20 +634,18 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
                     x.red = false;
                     root = x;
                 } else {
-                    K k = x.getKey();
                     long h = x.hash;
-                    Class<?> kc = null;
+                    ByteBuffer kb = map.allocator.buffer(x.keyAddress);
+                    int ko = OffHeapAllocator.offset(x.keyAddress);
                     for (TreeNode<K, V> p = root; ; ) {
                         int dir, ph;
-                        K pk = p.getKey();
                         if ((ph = (int) p.hash) > (int) h) {
                             dir = -1;
                         } else if (ph < (int) h) {
                             dir = 1;
-                        } else if ((kc == null &&
-                                (kc = comparableClassFor(k)) == null) ||
-                                (dir = compareComparables(kc, k, pk)) == 0) {
-                            dir = tieBreakOrder(k, pk);
+                        } else {
+                            dir = ByteBufferUtils.compare(kb, ko, x.keyLength, map.allocator.buffer(p.keyAddress),
+                                    OffHeapAllocator.offset(p.keyAddress), p.keyLength);
                         }
 
                         TreeNode<K, V> xp = p;
@@ -244,7 +662,8 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
                     }
                 }
             }
-            moveRootToFront(tab, root);
+            assert checkInvariants(root);
+            return root;
         }
 
         /**
@@ -265,74 +684,75 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
         }
 
         /**
-         * 插入树节点
+         * 插入树节点，从桶头调用。新叶子直接挂上，需要旋转时才获取写锁
+         * <p>
+         * 键已存在时返回已有节点；否则新节点使用keyAddress处的键块，keyAddress为0时复制k
          */
         final TreeNode<K, V> putTreeVal(ConcurrentOffHeapHashMap<K, V> map,
-                                        Node<K, V>[] tab,
-                                        long h, K k, V v) {
-            Class<?> kc = null;
-            boolean searched = false;
+                                        long h, ByteBuffer k, long keyAddress, long valueAddress) {
             TreeNode<K, V> root = (parent != null) ? root() : this;
             for (TreeNode<K, V> p = root; ; ) {
                 int dir, ph;
-                K pk;
                 if ((ph = (int) p.hash) > (int) h) {
                     dir = -1;
                 } else if (ph < (int) h) {
                     dir = 1;
-                } else if ((pk = p.getKey()) == k || (k != null && k.equals(pk))) {
+                } else if ((dir = p.compareKey(map.allocator, k)) == 0) {
                     return p;
-                } else if ((kc == null &&
-                        (kc = comparableClassFor(k)) == null) ||
-                        (dir = compareComparables(kc, k, pk)) == 0) {
-                    if (!searched) {
-                        TreeNode<K, V> q, ch;
-                        searched = true;
-                        if (((ch = p.left) != null &&
-                                (q = ch.find(h, k, kc)) != null) ||
-                                ((ch = p.right) != null &&
-                                        (q = ch.find(h, k, kc)) != null)) {
-                            return q;
-                        }
-                    }
-                    dir = tieBreakOrder(k, pk);
                 }
 
                 TreeNode<K, V> xp = p;
                 if ((p = (dir <= 0) ? p.left : p.right) == null) {
                     Node<K, V> xpn = xp.next;
-                    TreeNode<K, V> x = map.newTreeNode(h, k, v, xpn, xp);
-                    if (dir <= 0) {
-                        xp.left = x;
-                    } else {
-                        xp.right = x;
-                    }
-                    xp.next = x;
-                    x.parent = x.prev = xp;
+                    TreeNode<K, V> x = map.newTreeNode(h, keyAddress != 0L ? keyAddress : map.storeKey(k),
+                            k.limit(), valueAddress, xpn, xp);
+                    x.prev = xp;
                     if (xpn != null) {
                         ((TreeNode<K, V>) xpn).prev = x;
                     }
-                    moveRootToFront(tab, balanceInsertion(root, x));
+                    xp.next = x;
+                    if (!xp.red) {
+                        x.red = true;
+                        if (dir <= 0) {
+                            xp.left = x;
+                        } else {
+                            xp.right = x;
+                        }
+                    } else {
+                        lockRoot();
+                        try {
+                            if (dir <= 0) {
+                                xp.left = x;
+                            } else {
+                                xp.right = x;
+                            }
+                            root = balanceInsertion(root, x);
+                        } finally {
+                            unlockRoot();
+                        }
+                    }
+                    assert checkInvariants(root);
                     return null;
                 }
             }
         }
 
         /**
-         * 删除树节点
+         * 删除树节点，桶头的变化在最后一步发布，发布之后其它写线程才能锁住新的桶头
+         * <p>
+         * 先从链表摘除，再持桶头的写锁调整树。删除的是桶头时写锁不再释放，仍持有旧桶头的读线程改走链表
          */
         final boolean removeTreeNode(ConcurrentOffHeapHashMap<K, V> map,
-                                      Node<K, V>[] tab,
-                                      boolean movable) {
+                                      Node<K, V>[] tab) {
             int n;
             if (tab == null || (n = tab.length) == 0) {
                 return false;
             }
             int index = (n - 1) & (int) hash;
-            TreeNode<K, V> first = (TreeNode<K, V>) tab[index], root = first, rl;
+            TreeNode<K, V> head = (TreeNode<K, V>) tabAt(tab, index), first = head, root = first, rl;
             TreeNode<K, V> succ = (TreeNode<K, V>) next, pred = prev;
             if (pred == null) {
-                tab[index] = first = succ;
+                first = succ;
             } else {
                 pred.next = succ;
             }
@@ -340,16 +760,32 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
                 succ.prev = pred;
             }
             if (first == null) {
-                return false;
+                setTabAt(tab, index, null);
+                return true;
             }
             if (root.parent != null) {
                 root = root.root();
             }
             if (root == null || root.right == null ||
                     (rl = root.left) == null || rl.left == null) {
-                tab[index] = first.untreeify(map);
+                setTabAt(tab, index, first.untreeify(map));
                 return true;
             }
+            head.lockRoot();
+            try {
+                removeFromTree(root);
+            } finally {
+                if (pred != null) {
+                    head.unlockRoot();
+                }
+            }
+            if (pred == null) {
+                setTabAt(tab, index, first);
+            }
+            return true;
+        }
+
+        private void removeFromTree(TreeNode<K, V> root) {
             TreeNode<K, V> p = this, pl = left, pr = right, replacement;
             if (pl != null && pr != null) {
                 TreeNode<K, V> s = pr, sl;
@@ -427,60 +863,51 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
                     }
                 }
             }
-            if (movable) {
-                moveRootToFront(tab, r);
-            }
-            return true;
+            assert checkInvariants(r);
         }
 
         /**
-         * 分割树节点（用于resize）
+         * 分割树节点（用于扩容），复制节点到新表，旧桶保持原样供读线程继续遍历
          */
-        final void split(ConcurrentOffHeapHashMap<K, V> map, Node<K, V>[] tab, int index, int bit) {
-            TreeNode<K, V> b = this;
+        final void split(ConcurrentOffHeapHashMap<K, V> map, Node<K, V>[] nextTab, int index, int bit) {
             TreeNode<K, V> loHead = null, loTail = null;
             TreeNode<K, V> hiHead = null, hiTail = null;
             int lc = 0, hc = 0;
-            for (TreeNode<K, V> e = b, next; e != null; e = next) {
-                next = (TreeNode<K, V>) e.next;
-                e.next = null;
+            for (Node<K, V> e = this; e != null; e = e.next) {
+                TreeNode<K, V> p = map.replacementTreeNode(e, null);
                 if (((int) e.hash & bit) == 0) {
-                    if ((e.prev = loTail) == null) {
-                        loHead = e;
+                    if ((p.prev = loTail) == null) {
+                        loHead = p;
                     } else {
-                        loTail.next = e;
+                        loTail.next = p;
                     }
-                    loTail = e;
+                    loTail = p;
                     ++lc;
                 } else {
-                    if ((e.prev = hiTail) == null) {
-                        hiHead = e;
+                    if ((p.prev = hiTail) == null) {
+                        hiHead = p;
                     } else {
-                        hiTail.next = e;
+                        hiTail.next = p;
                     }
-                    hiTail = e;
+                    hiTail = p;
                     ++hc;
                 }
             }
 
             if (loHead != null) {
                 if (lc <= UNTREEIFY_THRESHOLD) {
-                    tab[index] = loHead.untreeify(map);
+                    setTabAt(nextTab, index, loHead.untreeify(map));
                 } else {
-                    tab[index] = loHead;
-                    if (hiHead != null) {
-                        loHead.treeify(tab);
-                    }
+                    loHead.treeify(map);
+                    setTabAt(nextTab, index, loHead);
                 }
             }
             if (hiHead != null) {
                 if (hc <= UNTREEIFY_THRESHOLD) {
-                    tab[index + bit] = hiHead.untreeify(map);
+                    setTabAt(nextTab, index + bit, hiHead.untreeify(map));
                 } else {
-                    tab[index + bit] = hiHead;
-                    if (loHead != null) {
-                        hiHead.treeify(tab);
-                    }
+                    hiHead.treeify(map);
+                    setTabAt(nextTab, index + bit, hiHead);
                 }
             }
         }
@@ -696,10 +1123,10 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
             if (tp != null && t != tp.left && t != tp.right) {
                 return false;
             }
-            if (tl != null && (tl.parent != t || tl.hash > (int) t.hash)) {
+            if (tl != null && (tl.parent != t || (int) tl.hash > (int) t.hash)) {
                 return false;
             }
-            if (tr != null && (tr.parent != t || tr.hash < (int) t.hash)) {
+            if (tr != null && (tr.parent != t || (int) tr.hash < (int) t.hash)) {
                 return false;
             }
             if (t.red && tl != null && tl.red && tr != null && tr.red) {
@@ -716,200 +1143,695 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
     }
 
     /**
-     * 工具方法：获取可比较类
+     * 扩容时放在已迁移桶上的转发节点，读线程经由它到新表中查找
      */
-    static Class<?> comparableClassFor(Object x) {
-        if (x instanceof Comparable) {
-            Class<?> c;
-            Type[] ts;
-            Type[] p;
-            if ((c = x.getClass()) == String.class) {
-                return c;
-            }
-            if ((ts = c.getGenericInterfaces()) != null) {
-                for (Type t : ts) {
-                    if ((t instanceof ParameterizedType) &&
-                            ((p = ((ParameterizedType) t).getActualTypeArguments()) != null &&
-                                    p.length == 1 && p[0] == c)) {
-                        return c;
+    static final class ForwardingNode<K, V> extends Node<K, V> {
+        final Node<K, V>[] nextTable;
+
+        ForwardingNode(Node<K, V>[] tab) {
+            super(0, 0, -1, 0, null);
+            this.nextTable = tab;
+        }
+
+        Node<K, V> find(ConcurrentOffHeapHashMap<K, V> map, long h, ByteBuffer k) {
+            outer:
+            for (Node<K, V>[] tab = nextTable; ; ) {
+                Node<K, V> e;
+                int n;
+                if (tab == null || (n = tab.length) == 0 ||
+                        (e = tabAt(tab, (n - 1) & (int) h)) == null) {
+                    return null;
+                }
+                for (; ; ) {
+                    if (e.hash == h && e.keyEquals(map.allocator, k)) {
+                        return e;
+                    }
+                    if (e instanceof ForwardingNode) {
+                        tab = ((ForwardingNode<K, V>) e).nextTable;
+                        continue outer;
+                    }
+                    if (e instanceof TreeNode) {
+                        return ((TreeNode<K, V>) e).findShared(map, h, k);
+                    }
+                    if ((e = e.next) == null) {
+                        return null;
                     }
                 }
             }
         }
-        return null;
     }
 
     /**
-     * 工具方法：比较可比较对象
+     * 遍历表中的节点，遇到转发节点时先遍历新表中对应的两个桶再回到旧表
      */
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    static int compareComparables(Class<?> kc, Object k, Object x) {
-        return (x == null || x.getClass() != kc ? 0 :
-                ((Comparable) k).compareTo(x));
-    }
+    static class Traverser<K, V> {
+        Node<K, V>[] tab;
+        Node<K, V> next;
+        TableStack<K, V> stack, spare;
+        int index;
+        int baseIndex;
+        int baseLimit;
+        final int baseSize;
+
+        Traverser(Node<K, V>[] tab, int size, int index, int limit) {
+            this.tab = tab;
+            this.baseSize = size;
+            this.baseIndex = this.index = index;
+            this.baseLimit = limit;
+            this.next = null;
+        }
 
+        final Node<K, V> advance() {
+            Node<K, V> e;
+            if ((e = next) != null) {
+                e = e.next;
+            }
+            for (; ; ) {
+                Node<K, V>[] t;
+                int i, n;
+                if (e != null) {
+                    return next = e;
+                }
+                if (baseIndex >= baseLimit || (t = tab) == null ||
+                        (n = t.length) <= (i = index) || i < 0) {
+                    return next = null;
+                }
+                if ((e = tabAt(t, i)) instanceof ForwardingNode) {
+                    tab = ((ForwardingNode<K, V>) e).nextTable;
+                    e = null;
+                    pushState(t, i, n);
+                    continue;
+                }
+                if (stack != null) {
+                    recoverState(n);
+                } else if ((index = i + baseSize) >= n) {
+                    index = ++baseIndex;
+                }
+            }
+        }
 
-    public Node<K, V>[] resize() {
-        Node<K, V>[] oldTab = this.table;
-        int oldCap = oldTab == null ? 0 : oldTab.length;
-        int oldThr = this.threshold;
-        int newThr = 0;
-        int newCap;
-        if (oldCap > 0) {
-            if (oldCap >= 1073741824) {
-                this.threshold = Integer.MAX_VALUE;
-                return oldTab;
-            }
-
-            if ((newCap = oldCap << 1) < 1073741824 && oldCap >= 16) {
-                newThr = oldThr << 1;
-            }
-        } else if (oldThr > 0) {
-            newCap = oldThr;
-        } else {
-            newCap = DEFAULT_CAPACITY;
-            newThr = (int) (DEFAULT_CAPACITY * loadFactor);
+        private void pushState(Node<K, V>[] t, int i, int n) {
+            TableStack<K, V> s = spare;
+            if (s != null) {
+                spare = s.next;
+            } else {
+                s = new TableStack<>();
+            }
+            s.tab = t;
+            s.length = n;
+            s.index = i;
+            s.next = stack;
+            stack = s;
         }
 
-        if (newThr == 0) {
-            float ft = (float) newCap * this.loadFactor;
-            newThr = newCap < 1073741824 && ft < 1.07374182E9F ? (int) ft : Integer.MAX_VALUE;
+        private void recoverState(int n) {
+            TableStack<K, V> s;
+            int len;
+            while ((s = stack) != null && (index += (len = s.length)) >= n) {
+                n = len;
+                index = s.index;
+                tab = s.tab;
+                s.tab = null;
+                TableStack<K, V> next = s.next;
+                s.next = spare;
+                stack = next;
+                spare = s;
+            }
+            if (s == null && (index += baseSize) >= n) {
+                index = ++baseIndex;
+            }
         }
+    }
 
-        this.threshold = newThr;
-        Node<K, V>[] newTab = new Node[newCap];
-        this.table = newTab;
-        if (oldTab != null) {
-            for (int j = 0; j < oldCap; ++j) {
-                Node<K, V> e;
-                if ((e = oldTab[j]) != null) {
-                    oldTab[j] = null;
-                    if (e.next == null) {
-                        newTab[(int) (e.hash & (newCap - 1))] = e;
-                    } else if (e instanceof TreeNode) {
-                        ((TreeNode<K, V>) e).split(this, newTab, j, oldCap);
-                    } else {
-                        Node<K, V> loHead = null;
-                        Node<K, V> loTail = null;
-                        Node<K, V> hiHead = null;
-                        Node<K, V> hiTail = null;
+    static final class TableStack<K, V> {
+        int length;
+        int index;
+        Node<K, V>[] tab;
+        TableStack<K, V> next;
+    }
 
-                        Node<K, V> next;
-                        do {
-                            next = e.next;
-                            if (((int) e.hash & oldCap) == 0) {
-                                if (loTail == null) {
-                                    loHead = e;
-                                } else {
-                                    loTail.next = e;
-                                }
-                                loTail = e;
-                            } else {
-                                if (hiTail == null) {
-                                    hiHead = e;
-                                } else {
-                                    hiTail.next = e;
-                                }
-                                hiTail = e;
-                            }
+    @SuppressWarnings("unchecked")
+    static <K, V> Node<K, V> tabAt(Node<K, V>[] tab, int i) {
+        return (Node<K, V>) TAB.getAcquire(tab, i);
+    }
 
-                            e = next;
-                        } while (next != null);
+    static <K, V> boolean casTabAt(Node<K, V>[] tab, int i, Node<K, V> c, Node<K, V> v) {
+        return TAB.compareAndSet(tab, i, c, v);
+    }
 
-                        if (loTail != null) {
-                            loTail.next = null;
-                            newTab[j] = loHead;
-                        }
+    static <K, V> void setTabAt(Node<K, V>[] tab, int i, Node<K, V> v) {
+        TAB.setRelease(tab, i, v);
+    }
 
-                        if (hiTail != null) {
-                            hiTail.next = null;
-                            newTab[j + oldCap] = hiHead;
-                        }
-                    }
-                }
-            }
-        }
+    static int resizeStamp(int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    }
 
-        return newTab;
+    /**
+     * 返回不小于给定容量的2的幂
+     */
+    static int tableSizeFor(int c) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(c - 1);
+        return (n < 0) ? 1 : (n >= 1073741824) ? 1073741824 : n + 1;
     }
 
-    @Override
-    public V remove(Object key) {
-        return removeNode(key);
+    private int thresholdFor(int n) {
+        float ft = (float) n * loadFactor;
+        return n < MAXIMUM_CAPACITY && ft < (float) MAXIMUM_CAPACITY ? (int) ft : Integer.MAX_VALUE;
     }
 
-    final V removeNode(Object key) {
+    /**
+     * 初始化表，sizeCtl为-1表示有线程正在初始化
+     */
+    private Node<K, V>[] initTable() {
+        return initTable(0);
+    }
+
+    /**
+     * 初始化表，表长度至少为minLength，用于预设大小时避免初始化后马上扩容
+     */
+    private Node<K, V>[] initTable(int minLength) {
         Node<K, V>[] tab;
-        Node<K, V> p;
-        int n, index;
-        long hash = hash(key);
-        if ((tab = table) != null && (n = tab.length) > 0 &&
-                (p = tab[index = (n - 1) & (int) hash]) != null) {
-            Node<K, V> node = null, e;
-            K k;
-            if (p.hash == hash &&
-                    ((k = p.getKey()) == key || (key != null && key.equals(k)))) {
-                node = p;
-            } else if ((e = p.next) != null) {
-                if (p instanceof TreeNode) {
-                    node = ((TreeNode<K, V>) p).getTreeNode(hash, key);
-                }
-                else {
-                    do {
-                        if (e.hash == hash &&
-                                ((k = e.getKey()) == key ||
-                                        (key != null && key.equals(k)))) {
-                            node = e;
-                            break;
+        int sc;
+        while ((tab = table) == null || tab.length == 0) {
+            if ((sc = sizeCtl) < 0) {
+                Thread.yield();
+            } else if (SIZE_CTL.compareAndSet(this, sc, -1)) {
+                try {
+                    if ((tab = table) == null || tab.length == 0) {
+                        int n = Math.max(minLength, capacity > 0 ? tableSizeFor(capacity) : DEFAULT_CAPACITY);
+                        Node<K, V>[] nt = (Node<K, V>[]) new Node<?, ?>[n];
+                        threshold = thresholdFor(n);
+                        table = tab = nt;
+                    }
+                } finally {
+                    sizeCtl = sc;
+                }
+                break;
+            }
+        }
+        return tab;
+    }
+
+    /**
+     * 将表扩容一倍并返回新表，扩容期间其它写线程会协助迁移
+     */
+    public Node<K, V>[] resize() {
+        Node<K, V>[] tab = table;
+        if (tab == null || tab.length == 0) {
+            return initTable();
+        }
+        if (tab.length < MAXIMUM_CAPACITY) {
+            tryPresize(tab.length << 1);
+        }
+        return table;
+    }
+
+    /**
+     * 扩容到至少能容纳size个桶
+     */
+    private void tryPresize(int size) {
+        int c = size >= MAXIMUM_CAPACITY ? MAXIMUM_CAPACITY : tableSizeFor(size);
+        int sc;
+        while ((sc = sizeCtl) >= 0) {
+            Node<K, V>[] tab = table;
+            int n;
+            if (tab == null || (n = tab.length) == 0) {
+                initTable(c);
+            } else if (c <= n || n >= MAXIMUM_CAPACITY) {
+                break;
+            } else if (tab == table) {
+                int rs = resizeStamp(n);
+                if (SIZE_CTL.compareAndSet(this, sc, (rs << RESIZE_STAMP_SHIFT) + 2)) {
+                    startTransfer(tab, sc);
+                }
+            }
+        }
+    }
+
+    /**
+     * 写线程遇到转发节点时协助迁移
+     */
+    final Node<K, V>[] helpTransfer(Node<K, V>[] tab, Node<K, V> f) {
+        Node<K, V>[] nextTab;
+        int sc;
+        if (tab != null && (f instanceof ForwardingNode) &&
+                (nextTab = ((ForwardingNode<K, V>) f).nextTable) != null) {
+            int rs = resizeStamp(tab.length) << RESIZE_STAMP_SHIFT;
+            while (nextTab == nextTable && table == tab &&
+                    (sc = sizeCtl) < 0) {
+                if ((sc >>> RESIZE_STAMP_SHIFT) != (rs >>> RESIZE_STAMP_SHIFT) ||
+                        sc == rs + MAX_RESIZERS || sc == rs + 1 || transferIndex <= 0) {
+                    break;
+                }
+                if (SIZE_CTL.compareAndSet(this, sc, sc + 1)) {
+                    transfer(tab, nextTab);
+                    break;
+                }
+            }
+            return nextTab;
+        }
+        return table;
+    }
+
+    /**
+     * 更新元素个数，check >= 0 时检查是否需要扩容
+     * <p>
+     * 计数单元上无竞争地加完后，只有桶内已有其它节点(check > 1)才汇总计数检查扩容，
+     * 避免每次写入都读取所有计数单元
+     */
+    private void addCount(long x, int check) {
+        CounterCell[] cs;
+        long b, s;
+        if ((cs = counterCells) != null ||
+                !BASE_COUNT.compareAndSet(this, b = baseCount, s = b + x)) {
+            CounterCell c;
+            long v;
+            int m;
+            boolean uncontended = true;
+            if (cs == null || (m = cs.length - 1) < 0 ||
+                    (c = cs[probe() & m]) == null ||
+                    !(uncontended = CELL_VALUE.compareAndSet(c, v = c.value, v + x))) {
+                fullAddCount(x, uncontended);
+                return;
+            }
+            if (check <= 1) {
+                return;
+            }
+            s = sumCount();
+        }
+        if (check >= 0) {
+            Node<K, V>[] tab, nt;
+            int n, sc;
+            while ((tab = table) != null && s >= (long) threshold &&
+                    (n = tab.length) < MAXIMUM_CAPACITY) {
+                int rs = resizeStamp(n) << RESIZE_STAMP_SHIFT;
+                if ((sc = sizeCtl) < 0) {
+                    if ((sc >>> RESIZE_STAMP_SHIFT) != (rs >>> RESIZE_STAMP_SHIFT) ||
+                            sc == rs + MAX_RESIZERS || sc == rs + 1 ||
+                            (nt = nextTable) == null || transferIndex <= 0) {
+                        break;
+                    }
+                    if (SIZE_CTL.compareAndSet(this, sc, sc + 1)) {
+                        transfer(tab, nt);
+                    }
+                } else if (SIZE_CTL.compareAndSet(this, sc, rs + 2)) {
+                    startTransfer(tab, sc);
+                }
+                s = sumCount();
+            }
+        }
+    }
+
+    /**
+     * 按缓存行填充的计数单元
+     */
+    static final class CounterCell {
+        long p0, p1, p2, p3, p4, p5, p6;
+        volatile long value;
+        long q0, q1, q2, q3, q4, q5, q6;
+
+        CounterCell(long x) {
+            value = x;
+        }
+    }
+
+    final long sumCount() {
+        CounterCell[] cs = counterCells;
+        long sum = baseCount;
+        if (cs != null) {
+            for (CounterCell c : cs) {
+                if (c != null) {
+                    sum += c.value;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 线程的探针值，用于选择计数单元，冲突时重新散列
+     */
+    private static int probe() {
+        return PROBE.get()[0];
+    }
+
+    private static int advanceProbe() {
+        int[] holder = PROBE.get();
+        int h = holder[0];
+        h ^= h << 13;
+        h ^= h >>> 17;
+        h ^= h << 5;
+        return holder[0] = h;
+    }
+
+    /**
+     * 计数单元的创建、扩容与竞争重试，与LongAdder的做法相同
+     */
+    private void fullAddCount(long x, boolean wasUncontended) {
+        int h = probe();
+        boolean collide = false;
+        for (; ; ) {
+            CounterCell[] cs;
+            CounterCell c;
+            int n;
+            long v;
+            if ((cs = counterCells) != null && (n = cs.length) > 0) {
+                if ((c = cs[(n - 1) & h]) == null) {
+                    if (cellsBusy == 0) {
+                        CounterCell r = new CounterCell(x);
+                        if (cellsBusy == 0 && CELLS_BUSY.compareAndSet(this, 0, 1)) {
+                            boolean created = false;
+                            try {
+                                CounterCell[] rs;
+                                int m, j;
+                                if ((rs = counterCells) != null && (m = rs.length) > 0 &&
+                                        rs[j = (m - 1) & h] == null) {
+                                    rs[j] = r;
+                                    created = true;
+                                }
+                            } finally {
+                                cellsBusy = 0;
+                            }
+                            if (created) {
+                                break;
+                            }
+                            continue;
                         }
-                        p = e;
-                    } while ((e = e.next) != null);
+                    }
+                    collide = false;
+                } else if (!wasUncontended) {
+                    wasUncontended = true;
+                } else if (CELL_VALUE.compareAndSet(c, v = c.value, v + x)) {
+                    break;
+                } else if (counterCells != cs || n >= NCPU) {
+                    collide = false;
+                } else if (!collide) {
+                    collide = true;
+                } else if (cellsBusy == 0 && CELLS_BUSY.compareAndSet(this, 0, 1)) {
+                    try {
+                        if (counterCells == cs) {
+                            CounterCell[] grown = new CounterCell[n << 1];
+                            System.arraycopy(cs, 0, grown, 0, n);
+                            counterCells = grown;
+                        }
+                    } finally {
+                        cellsBusy = 0;
+                    }
+                    collide = false;
+                    continue;
+                }
+                h = advanceProbe();
+            } else if (cellsBusy == 0 && counterCells == cs &&
+                    CELLS_BUSY.compareAndSet(this, 0, 1)) {
+                boolean init = false;
+                try {
+                    if (counterCells == cs) {
+                        CounterCell[] rs = new CounterCell[2];
+                        rs[h & 1] = new CounterCell(x);
+                        counterCells = rs;
+                        init = true;
+                    }
+                } finally {
+                    cellsBusy = 0;
+                }
+                if (init) {
+                    break;
                 }
+            } else if (BASE_COUNT.compareAndSet(this, v = baseCount, v + x)) {
+                break;
             }
-            if (node != null) {
-                V oldValue = node.getValue();
-                if (node instanceof TreeNode) {
-                    ((TreeNode<K, V>) node).removeTreeNode(this, tab, true);
-                } else if (node == p) {
-                    tab[index] = node.next;
-                } else {
-                    p.next = node.next;
+        }
+    }
+
+    /**
+     * 抢到sizeCtl后开始迁移
+     * <p>
+     * 空闲时sizeCtl总为0，读到的tab可能已被另一次扩容迁移完，此时放弃并还原sizeCtl
+     */
+    private void startTransfer(Node<K, V>[] tab, int sc) {
+        if (tab == table) {
+            transfer(tab, null);
+        } else {
+            sizeCtl = sc;
+        }
+    }
+
+    /**
+     * 迁移旧表中的桶到新表
+     * <p>
+     * 每个线程通过transferIndex领取一段桶(stride)从后往前迁移，迁移完的桶放置转发节点。
+     * 链表按新增的哈希位拆成高低两条，复制节点而不修改旧链表，读线程可继续遍历旧桶
+     */
+    private void transfer(Node<K, V>[] tab, Node<K, V>[] nextTab) {
+        int n = tab.length, stride;
+        if ((stride = (NCPU > 1) ? (n >>> 3) / NCPU : n) < MIN_TRANSFER_STRIDE) {
+            stride = MIN_TRANSFER_STRIDE;
+        }
+        if (nextTab == null) {
+            try {
+                nextTab = (Node<K, V>[]) new Node<?, ?>[n << 1];
+            } catch (Throwable ex) {
+                threshold = Integer.MAX_VALUE;
+                sizeCtl = 0;
+                return;
+            }
+            nextTable = nextTab;
+            transferIndex = n;
+        }
+        int nextn = nextTab.length;
+        ForwardingNode<K, V> fwd = new ForwardingNode<>(nextTab);
+        boolean advance = true;
+        boolean finishing = false;
+        for (int i = 0, bound = 0; ; ) {
+            Node<K, V> f;
+            while (advance) {
+                int nextIndex, nextBound;
+                if (--i >= bound || finishing) {
+                    advance = false;
+                } else if ((nextIndex = transferIndex) <= 0) {
+                    i = -1;
+                    advance = false;
+                } else if (TRANSFER_INDEX.compareAndSet(this, nextIndex,
+                        nextBound = (nextIndex > stride ? nextIndex - stride : 0))) {
+                    bound = nextBound;
+                    i = nextIndex - 1;
+                    advance = false;
+                }
+            }
+            if (i < 0 || i >= n || i + n >= nextn) {
+                int sc;
+                if (finishing) {
+                    nextTable = null;
+                    threshold = thresholdFor(nextn);
+                    table = nextTab;
+                    sizeCtl = 0;
+                    return;
+                }
+                if (SIZE_CTL.compareAndSet(this, sc = sizeCtl, sc - 1)) {
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT) {
+                        return;
+                    }
+                    finishing = advance = true;
+                    i = n;
+                }
+            } else if ((f = tabAt(tab, i)) == null) {
+                advance = casTabAt(tab, i, null, fwd);
+            } else if (f instanceof ForwardingNode) {
+                advance = true;
+            } else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        if (f instanceof TreeNode) {
+                            ((TreeNode<K, V>) f).split(this, nextTab, i, n);
+                        } else {
+                            int runBit = (int) f.hash & n;
+                            Node<K, V> lastRun = f;
+                            for (Node<K, V> p = f.next; p != null; p = p.next) {
+                                int b = (int) p.hash & n;
+                                if (b != runBit) {
+                                    runBit = b;
+                                    lastRun = p;
+                                }
+                            }
+                            Node<K, V> ln, hn;
+                            if (runBit == 0) {
+                                ln = lastRun;
+                                hn = null;
+                            } else {
+                                hn = lastRun;
+                                ln = null;
+                            }
+                            for (Node<K, V> p = f; p != lastRun; p = p.next) {
+                                if (((int) p.hash & n) == 0) {
+                                    ln = replacementNode(p, ln);
+                                } else {
+                                    hn = replacementNode(p, hn);
+                                }
+                            }
+                            setTabAt(nextTab, i, ln);
+                            setTabAt(nextTab, i + n, hn);
+                        }
+                        setTabAt(tab, i, fwd);
+                        advance = true;
+                    }
                 }
-                size.decrementAndGet();
-                return oldValue;
             }
         }
-        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        return removeNode(key);
+    }
+
+    final V removeNode(Object key) {
+        ByteBuffer k = encodeKey(key);
+        long old = removeBlocks(hash(k), k);
+        return old == 0L ? null : releaseValue(old);
+    }
+
+    /**
+     * 按编码后的键删除，释放键块，返回被删除节点的值块地址，由调用方解码后释放；不存在时返回0
+     */
+    final long removeBlocks(long hash, ByteBuffer k) {
+        WriteAheadLog log = this.log;
+        long old, lsn = 0L;
+        int keyLength;
+        boolean stale;
+        for (Node<K, V>[] tab = table; ; ) {
+            Node<K, V> f;
+            int n, index;
+            if (tab == null || (n = tab.length) == 0 ||
+                    (f = tabAt(tab, index = (n - 1) & (int) hash)) == null) {
+                return 0L;
+            }
+            if (f instanceof ForwardingNode) {
+                tab = helpTransfer(tab, f);
+                continue;
+            }
+            synchronized (f) {
+                if (tabAt(tab, index) != f) {
+                    continue;
+                }
+                Node<K, V> p = f, node = null, e;
+                if (p.hash == hash && p.keyEquals(allocator, k)) {
+                    node = p;
+                } else if ((e = p.next) != null) {
+                    if (p instanceof TreeNode) {
+                        node = ((TreeNode<K, V>) p).getTreeNode(this, hash, k);
+                    } else {
+                        do {
+                            if (e.hash == hash && e.keyEquals(allocator, k)) {
+                                node = e;
+                                break;
+                            }
+                            p = e;
+                        } while ((e = e.next) != null);
+                    }
+                }
+                if (node == null) {
+                    return 0L;
+                }
+                unlink(tab, index, p, node);
+                allocator.free(node.keyAddress);
+                keyLength = node.keyLength;
+                old = node.valueAddress;
+                long at = node.expireAt;
+                stale = at != 0L && at - System.nanoTime() <= 0L;
+                if (log != null) {
+                    lsn = log.append(WriteAheadLog.REMOVE, hash, k, 0, k.limit(), null, 0, 0);
+                }
+            }
+            break;
+        }
+        addCount(-1L, -1);
+        if (eviction != null) {
+            eviction.bytes.add(-(keyLength + valueLength(old)));
+        }
+        if (lsn != 0L) {
+            log.commit(lsn);
+        }
+        if (stale) {
+            allocator.free(old);
+            return 0L;
+        }
+        return old;
+    }
+
+    /**
+     * 从桶中摘除node，p是链表中node的前驱，node为桶头时p == node。树节点由removeTreeNode处理，调用方持有桶锁
+     */
+    private void unlink(Node<K, V>[] tab, int index, Node<K, V> p, Node<K, V> node) {
+        if (node instanceof TreeNode) {
+            ((TreeNode<K, V>) node).removeTreeNode(this, tab);
+        } else if (node == p) {
+            setTabAt(tab, index, node.next);
+        } else {
+            p.next = node.next;
+        }
+    }
+
+    private int valueLength(long valueAddress) {
+        return allocator.buffer(valueAddress).getInt(OffHeapAllocator.offset(valueAddress));
     }
 
     @Override
     public V get(Object key) {
         Node<K, V> e;
-        return (e = this.getNode(key)) == null ? null : e.getValue();
+        return (e = this.getNode(key)) == null ? null : e.getValue(this);
     }
 
     final Node<K, V> getNode(Object key) {
+        ByteBuffer k = encodeKey(key);
+        long hash = hash(k);
+        Node<K, V> e = findNode(hash, k);
+        Eviction ev = eviction;
+        if (ev != null) {
+            ev.sketch.increment(hash);
+            if (e != null && !e.referenced) {
+                e.referenced = true;
+            }
+        }
+        Expiry<K, V> x = expiry;
+        if (x != null && e != null) {
+            long at = e.expireAt, afterAccess = x.afterAccess;
+            if (at != 0L || afterAccess > 0L) {
+                long now = System.nanoTime();
+                if (at != 0L && at - now <= 0L) {
+                    // 已过期但时间轮还没有删除，按不存在处理
+                    return null;
+                }
+                if (afterAccess > 0L) {
+                    e.expireAt = deadline(now, afterAccess);
+                    if (at == 0L) {
+                        x.pending.add(e);
+                    }
+                }
+            }
+        }
+        return e;
+    }
+
+    final Node<K, V> findNode(long hash, ByteBuffer k) {
         Node<K, V>[] tab;
         Node<K, V> first, e;
         int n;
-        long hash = hash(key);
         if ((tab = table) != null && (n = tab.length) > 0 &&
-                (first = tab[(n - 1) & (int) hash]) != null) {
-            if (first.hash == hash) {
-                K k;
-                if ((k = first.getKey()) == key || (key != null && key.equals(k))) {
-                    return first;
-                }
+                (first = tabAt(tab, (n - 1) & (int) hash)) != null) {
+            if (first.hash == hash && first.keyEquals(allocator, k)) {
+                return first;
+            }
+            if (first instanceof ForwardingNode) {
+                return ((ForwardingNode<K, V>) first).find(this, hash, k);
             }
             if ((e = first.next) != null) {
                 if (first instanceof TreeNode) {
-                    return ((TreeNode<K, V>) first).getTreeNode(hash, key);
+                    return ((TreeNode<K, V>) first).findShared(this, hash, k);
                 }
                 do {
-                    K k;
-                    if (e.hash == hash && ((k = e.getKey()) == key || (key != null && key.equals(k)))) {
+                    if (e.hash == hash && e.keyEquals(allocator, k)) {
                         return e;
-
                     }
                 } while ((e = e.next) != null);
             }
@@ -919,99 +1841,268 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
 
     @Override
     public V put(K key, V value) {
-        return putValue(hash(key), key, value);
+        ByteBuffer k = encodeKey(key);
+        return putValue(hash(k), k, value);
     }
 
-    final V putValue(long hash, K key, V value) {
-        Node<K, V>[] tab;
-        Node<K, V> p;
-        int n, i;
-        if ((tab = table) == null || (n = tab.length) == 0) {
-            n = (tab = resize()).length;
+    final V putValue(long hash, ByteBuffer key, V value) {
+        long old = putBlocks(hash, key, 0L, storeValue(value));
+        return old == 0L ? null : releaseValue(old);
+    }
+
+    /**
+     * 写入并在ttl之后过期，覆盖expireAfterWrite与expireAfterAccess的默认值；
+     * 之后的读命中在设置了expireAfterAccess时仍会推迟过期时间
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) {
+        if (ttl <= 0L) {
+            throw new IllegalArgumentException("Illegal ttl: " + ttl);
         }
-        if ((p = tab[i = (n - 1) & (int) hash]) == null) {
-            tab[i] = newNode(hash, key, value, null);
+        expiry();
+        ByteBuffer k = encodeKey(key);
+        long old = putBlocks(hash(k), k, 0L, storeValue(value), deadline(System.nanoTime(), unit.toNanos(ttl)));
+        return old == 0L ? null : releaseValue(old);
+    }
+
+    /**
+     * 之后写入的条目在写入duration之后过期，0表示不再设置默认过期时间
+     */
+    public void expireAfterWrite(long duration, TimeUnit unit) {
+        if (duration < 0L) {
+            throw new IllegalArgumentException("Illegal duration: " + duration);
         }
-        else {
-            Node<K, V> e;
-            K k;
-            synchronized (p) {
-                if (p.hash == hash &&
-                        ((k = p.getKey()) == key || (key != null && key.equals(k)))) {
-                    e = p;
-                } else if (p instanceof TreeNode) {
-                    e = ((TreeNode<K, V>) p).putTreeVal(this, tab, hash, key, value);
-                }
-                else {
-                    int binCount = 0;
-                    for (e = p; ; ++binCount) {
-                        if (e.next == null) {
-                            e.next = newNode(hash, key, value, null);
-                            if (binCount >= TREEIFY_THRESHOLD - 1) {
-                                treeifyBin(tab, hash);
+        expiry().afterWrite = unit.toNanos(duration);
+    }
+
+    /**
+     * 条目在最后一次写入或读命中duration之后过期，0表示关闭
+     */
+    public void expireAfterAccess(long duration, TimeUnit unit) {
+        if (duration < 0L) {
+            throw new IllegalArgumentException("Illegal duration: " + duration);
+        }
+        expiry().afterAccess = unit.toNanos(duration);
+    }
+
+    /**
+     * 解码被替换下来的值块并释放
+     */
+    final V releaseValue(long address) {
+        V value = decodeValue(address);
+        allocator.free(address);
+        return value;
+    }
+
+    final V decodeValue(long address) {
+        ByteBuffer buf = allocator.buffer(address);
+        int offset = OffHeapAllocator.offset(address);
+        return valueCodec.decode(buf, offset + VALUE_HEADER, buf.getInt(offset));
+    }
+
+    /**
+     * 写入已经分配好的值块，键已存在时替换值块并返回旧值块地址，新插入时返回0
+     * <p>
+     * key的[0, limit)为键的字节，用于比较。keyAddress不为0时是调用方已写好的键块，所有权交给map，
+     * 键已存在时由map释放；为0时只在需要新节点时复制key。值块编码放在桶锁之外完成，
+     * 旧值块由调用方解码后释放
+     */
+    final long putBlocks(long hash, ByteBuffer key, long keyAddress, long valueAddress) {
+        Expiry<K, V> x = expiry;
+        return putBlocks(hash, key, keyAddress, valueAddress, x == null ? 0L : x.defaultDeadline());
+    }
+
+    /**
+     * expireAt为新的过期时刻，0表示不过期。替换的旧值已经过期时按新插入处理，旧值块由map释放并返回0
+     */
+    final long putBlocks(long hash, ByteBuffer key, long keyAddress, long valueAddress, long expireAt) {
+        long ka = keyAddress, old = 0L, lsn = 0L;
+        int binCount = 0;
+        WriteAheadLog log = this.log;
+        Expiry<K, V> x = expiry;
+        boolean stale = false, timed = false;
+        Node<K, V> added = null;
+        for (Node<K, V>[] tab = table; ; ) {
+            Node<K, V> f;
+            int n, i;
+            if (tab == null || (n = tab.length) == 0) {
+                tab = initTable();
+            } else if ((f = tabAt(tab, i = (n - 1) & (int) hash)) == null) {
+                if (ka == 0L) {
+                    ka = storeKey(key);
+                }
+                Node<K, V> node = added = newNode(hash, ka, key.limit(), valueAddress, null);
+                node.expireAt = expireAt;
+                if (log == null) {
+                    if (casTabAt(tab, i, null, node)) {
+                        break;
+                    }
+                } else {
+                    // 先锁住新节点再发布，同一个桶上后来的写线程要等本条记录追加之后才能拿到桶锁
+                    synchronized (node) {
+                        if (casTabAt(tab, i, null, node)) {
+                            lsn = logPut(log, hash, key, valueAddress);
+                        }
+                    }
+                    if (lsn != 0L) {
+                        break;
+                    }
+                }
+            } else if (f instanceof ForwardingNode) {
+                tab = helpTransfer(tab, f);
+            } else {
+                Node<K, V> e = null;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        if (f instanceof TreeNode) {
+                            binCount = 2;
+                            TreeNode<K, V> h = (TreeNode<K, V>) f;
+                            if ((e = h.putTreeVal(this, hash, key, ka, valueAddress)) == null &&
+                                    (eviction != null || expireAt != 0L)) {
+                                (added = h.getTreeNode(this, hash, key)).expireAt = expireAt;
+                            }
+                        } else {
+                            binCount = 1;
+                            for (Node<K, V> last = f; ; ++binCount) {
+                                if (last.hash == hash && last.keyEquals(allocator, key)) {
+                                    e = last;
+                                    break;
+                                }
+                                Node<K, V> next;
+                                if ((next = last.next) == null) {
+                                    added = newNode(hash, ka != 0L ? ka : storeKey(key), key.limit(),
+                                            valueAddress, null);
+                                    added.expireAt = expireAt;
+                                    last.next = added;
+                                    break;
+                                }
+                                last = next;
                             }
-                            break;
                         }
-                        if (e.hash == hash &&
-                                ((k = e.getKey()) == key || (key != null && key.equals(k)))) {
-                            break;
+                        if (e != null) {
+                            old = e.valueAddress;
+                            long at = e.expireAt;
+                            if (at != 0L) {
+                                timed = true;
+                                stale = at - System.nanoTime() <= 0L;
+                            }
+                            e.expireAt = expireAt;
+                            e.valueAddress = valueAddress;
+                        }
+                        if (log != null) {
+                            lsn = logPut(log, hash, key, valueAddress);
                         }
-                        e = e.next;
                     }
                 }
-            }
-            if (e != null) {
-                V oldValue = e.getValue();
-                e.setValue(value);
-                return oldValue;
+                if (binCount != 0) {
+                    if (binCount >= TREEIFY_THRESHOLD) {
+                        treeifyBin(tab, hash);
+                    }
+                    if (e != null) {
+                        allocator.free(ka);
+                        if (lsn != 0L) {
+                            log.commit(lsn);
+                        }
+                        if (eviction != null) {
+                            afterWrite(hash, null, valueLength(valueAddress) - valueLength(old));
+                        }
+                        if (expireAt != 0L && !timed) {
+                            // 已有定时器的节点到期时会按新的过期时刻重新安排
+                            x.pending.add(e);
+                        }
+                        if (stale) {
+                            allocator.free(old);
+                            return 0L;
+                        }
+                        return old;
+                    }
+                    break;
+                }
             }
         }
-        if (size.incrementAndGet() > threshold) {
-            resize();
+        addCount(1L, binCount);
+        if (lsn != 0L) {
+            log.commit(lsn);
         }
-        return null;
+        if (eviction != null) {
+            afterWrite(hash, added, key.limit() + valueLength(valueAddress));
+        }
+        if (expireAt != 0L) {
+            x.pending.add(added);
+        }
+        return 0L;
+    }
+
+    /**
+     * 在桶锁内追加写入记录，值字节直接从值块复制
+     */
+    private long logPut(WriteAheadLog log, long hash, ByteBuffer key, long valueAddress) {
+        ByteBuffer vb = allocator.buffer(valueAddress);
+        int vo = OffHeapAllocator.offset(valueAddress);
+        return log.append(WriteAheadLog.PUT, hash, key, 0, key.limit(), vb, vo + VALUE_HEADER, vb.getInt(vo));
     }
 
     /**
-     * 将链表转换为红黑树
+     * 将链表转换为红黑树，表太小时改为扩容
      */
     final void treeifyBin(Node<K, V>[] tab, long hash) {
         int n, index;
-        Node<K, V> e;
-        if (tab == null || (n = tab.length) < MIN_TREEIFY_CAPACITY) {
-            resize();
-        } else if ((e = tab[index = (n - 1) & (int) hash]) != null) {
-            TreeNode<K, V> hd = null, tl = null;
-            do {
-                TreeNode<K, V> p = replacementTreeNode(e, null);
-                if (tl == null) {
-                    hd = p;
-                } else {
-                    p.prev = tl;
-                    tl.next = p;
+        Node<K, V> b;
+        if (tab == null) {
+            return;
+        }
+        if ((n = tab.length) < MIN_TREEIFY_CAPACITY) {
+            tryPresize(n << 1);
+        } else if ((b = tabAt(tab, index = (n - 1) & (int) hash)) != null &&
+                !(b instanceof TreeNode) && !(b instanceof ForwardingNode)) {
+            synchronized (b) {
+                if (tabAt(tab, index) == b) {
+                    setTabAt(tab, index, toTreeBin(b));
                 }
-                tl = p;
-            } while ((e = e.next) != null);
-            if ((tab[index] = hd) != null) {
-                hd.treeify(tab);
             }
         }
     }
 
+    /**
+     * 复制链表为树节点并建树，返回新的桶头
+     */
+    private TreeNode<K, V> toTreeBin(Node<K, V> b) {
+        TreeNode<K, V> hd = null, tl = null;
+        for (Node<K, V> e = b; e != null; e = e.next) {
+            TreeNode<K, V> p = replacementTreeNode(e, null);
+            if (tl == null) {
+                hd = p;
+            } else {
+                p.prev = tl;
+                tl.next = p;
+            }
+            tl = p;
+        }
+        hd.treeify(this);
+        return hd;
+    }
+
+    /**
+     * 替换节点时直接转移键值块的所有权，不复制堆外数据
+     */
     TreeNode<K, V> replacementTreeNode(Node<K, V> p, Node<K, V> next) {
-        return new TreeNode<>(p.hash, p.getKey(), p.getValue(), next, null);
+        TreeNode<K, V> r = new TreeNode<>(p.hash, p.keyAddress, p.keyLength, p.valueAddress, next, null);
+        r.referenced = p.referenced;
+        return r;
     }
 
     Node<K, V> replacementNode(Node<K, V> p, Node<K, V> next) {
-        return new Node<>(p.hash, p.getKey(), p.getValue(), next);
+        Node<K, V> r = new Node<>(p.hash, p.keyAddress, p.keyLength, p.valueAddress, next);
+        r.referenced = p.referenced;
+        return r;
     }
 
-    TreeNode<K, V> newTreeNode(long hash, K key, V value, Node<K, V> next, TreeNode<K, V> parent) {
-        return new TreeNode<>(hash, key, value, next, parent);
+    TreeNode<K, V> newTreeNode(long hash, long keyAddress, int keyLength, long valueAddress,
+                               Node<K, V> next, TreeNode<K, V> parent) {
+        return new TreeNode<>(hash, keyAddress, keyLength, valueAddress, next, parent);
     }
 
-    private Node<K, V> newNode(long hash, K key, V value, Node<K, V> next) {
-        return new Node<>(hash, key, value, next);
+    Node<K, V> newNode(long hash, long keyAddress, int keyLength, long valueAddress, Node<K, V> next) {
+        return new Node<>(hash, keyAddress, keyLength, valueAddress, next);
     }
 
     @Override
@@ -1021,22 +2112,508 @@ public class ConcurrentOffHeapHashMap<K, V> extends AbstractMap<K, V> implements
 
     @Override
     public void clear() {
+        WriteAheadLog log = this.log;
+        long delta = 0L, lsn = 0L, bytes = 0L;
+        int i = 0;
+        Node<K, V>[] tab = table;
+        while (tab != null && i < tab.length) {
+            Node<K, V> f = tabAt(tab, i);
+            if (f == null) {
+                ++i;
+            } else if (f instanceof ForwardingNode) {
+                tab = helpTransfer(tab, f);
+                i = 0;
+            } else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        setTabAt(tab, i++, null);
+                        for (Node<K, V> e = f; e != null; e = e.next) {
+                            if (log != null) {
+                                lsn = logRemove(log, e);
+                            }
+                            if (eviction != null) {
+                                bytes += e.keyLength + valueLength(e.valueAddress);
+                            }
+                            e.free(allocator);
+                            --delta;
+                        }
+                    }
+                }
+            }
+        }
+        if (delta != 0L) {
+            addCount(delta, -1);
+        }
+        if (eviction != null) {
+            eviction.bytes.add(-bytes);
+        }
+        if (lsn != 0L) {
+            log.commit(lsn);
+        }
+    }
+
+    /**
+     * 在桶锁内追加删除记录，键字节直接从键块复制
+     */
+    private long logRemove(WriteAheadLog log, Node<K, V> e) {
+        long k = e.keyAddress;
+        return log.append(WriteAheadLog.REMOVE, e.hash, allocator.buffer(k), OffHeapAllocator.offset(k),
+                e.keyLength, null, 0, 0);
+    }
+
+    /**
+     * 有界模式的状态。字节数只计键值编码后的长度，不含值块头与分配器的取整
+     */
+    static final class Eviction {
+        final long maximumBytes;
+        final long maximumEntries;
+        final EvictionListener listener;
+        final LongAdder bytes = new LongAdder();
+        final FrequencySketch sketch = new FrequencySketch();
+        /**
+         * CLOCK指针，各线程取下一个桶下标时自增，不需要锁
+         */
+        final AtomicInteger hand = new AtomicInteger();
+
+        Eviction(long maximumBytes, long maximumEntries, EvictionListener listener) {
+            this.maximumBytes = maximumBytes;
+            this.maximumEntries = maximumEntries;
+            this.listener = listener;
+        }
+
+        boolean overflow(ConcurrentOffHeapHashMap<?, ?> map) {
+            return (maximumEntries > 0 && map.sumCount() > maximumEntries) ||
+                    (maximumBytes > 0 && bytes.sum() > maximumBytes);
+        }
+    }
+
+    /**
+     * 写入后更新字节数与频率，超出上限时由写线程自己淘汰。added为新插入的节点，替换已有值时为null
+     */
+    private void afterWrite(long hash, Node<K, V> added, long bytes) {
+        Eviction ev = eviction;
+        ev.bytes.add(bytes);
+        ev.sketch.increment(hash);
+        if (ev.overflow(this)) {
+            evict(ev, added);
+        }
+    }
+
+    /**
+     * CLOCK淘汰：指针逐桶前进，桶内第一个访问位为0的节点是候选，沿途清除访问位。
+     * candidate为本次写入新插入的节点，候选的频率不低于它时淘汰candidate，只比较一次。
+     * 走过两圈仍未回到上限以内时放弃，留给之后的写入
+     */
+    private void evict(Eviction ev, Node<K, V> candidate) {
         Node<K, V>[] tab;
-        if ((tab = table) != null && size.get() > 0) {
-            size.set(0);
-            for (int i = 0; i < tab.length; ++i) {
-                tab[i] = null;
+        for (int visits = 0; (tab = table) != null && ev.overflow(this); ) {
+            int n = tab.length;
+            if (visits++ == 0) {
+                ev.sketch.ensureCapacity(n);
+            } else if (visits > 2 * n) {
+                break;
+            }
+            int i = ev.hand.getAndIncrement() & (n - 1);
+            Node<K, V> f = tabAt(tab, i), victim = null;
+            if (f == null) {
+                continue;
+            }
+            if (f instanceof ForwardingNode) {
+                helpTransfer(tab, f);
+                continue;
+            }
+            boolean reject = false;
+            long lsn = 0L;
+            synchronized (f) {
+                if (tabAt(tab, i) != f) {
+                    continue;
+                }
+                for (Node<K, V> p = f, e = f; e != null; p = e, e = e.next) {
+                    if (e.referenced) {
+                        e.referenced = false;
+                        continue;
+                    }
+                    if (candidate != null && e.keyAddress != candidate.keyAddress &&
+                            ev.sketch.frequency(candidate.hash) <= ev.sketch.frequency(e.hash)) {
+                        reject = true;
+                    } else {
+                        unlink(tab, i, p, e);
+                        if (log != null) {
+                            lsn = logRemove(log, e);
+                        }
+                        victim = e;
+                    }
+                    break;
+                }
+            }
+            if (reject) {
+                evictNode(ev, candidate);
+                candidate = null;
+            } else if (victim != null && candidate != null && victim.keyAddress == candidate.keyAddress) {
+                candidate = null;
+            }
+            if (victim != null) {
+                evicted(ev, victim, lsn);
+            }
+        }
+    }
+
+    /**
+     * 按键块地址找到节点并淘汰。迁移后的节点是复制出来的，但键块地址不变；节点已不在表中时什么也不做
+     */
+    private void evictNode(Eviction ev, Node<K, V> node) {
+        long hash = node.hash, lsn = 0L;
+        Node<K, V> victim = null;
+        for (Node<K, V>[] tab = table; ; ) {
+            Node<K, V> f;
+            int n, i;
+            if (tab == null || (n = tab.length) == 0 || (f = tabAt(tab, i = (n - 1) & (int) hash)) == null) {
+                return;
+            }
+            if (f instanceof ForwardingNode) {
+                tab = helpTransfer(tab, f);
+                continue;
+            }
+            synchronized (f) {
+                if (tabAt(tab, i) != f) {
+                    continue;
+                }
+                for (Node<K, V> p = f, e = f; e != null; p = e, e = e.next) {
+                    if (e.keyAddress == node.keyAddress) {
+                        unlink(tab, i, p, e);
+                        if (log != null) {
+                            lsn = logRemove(log, e);
+                        }
+                        victim = e;
+                        break;
+                    }
+                }
+            }
+            break;
+        }
+        if (victim != null) {
+            evicted(ev, victim, lsn);
+        }
+    }
+
+    /**
+     * 已从表中摘除的节点：更新计数，把原始字节交给回调，再释放键值块
+     */
+    private void evicted(Eviction ev, Node<K, V> node, long lsn) {
+        addCount(-1L, -1);
+        long k = node.keyAddress, v = node.valueAddress;
+        ByteBuffer vb = allocator.buffer(v);
+        int vo = OffHeapAllocator.offset(v), vl = vb.getInt(vo);
+        ev.bytes.add(-(node.keyLength + vl));
+        try {
+            if (lsn != 0L) {
+                log.commit(lsn);
+            }
+            if (ev.listener != null) {
+                ev.listener.onEviction(
+                        allocator.buffer(k).slice(OffHeapAllocator.offset(k), node.keyLength).asReadOnlyBuffer(),
+                        vb.slice(vo + VALUE_HEADER, vl).asReadOnlyBuffer());
+            }
+        } finally {
+            node.free(allocator);
+        }
+    }
+
+    /**
+     * 过期状态。写线程把新安排的节点放进pending，时间轮只由过期线程访问
+     */
+    static final class Expiry<K, V> {
+        volatile long afterWrite;
+        volatile long afterAccess;
+        final ConcurrentLinkedQueue<Node<K, V>> pending = new ConcurrentLinkedQueue<>();
+        final TimerWheel<Node<K, V>> wheel = new TimerWheel<>(System.nanoTime());
+        volatile ScheduledFuture<?> task;
+
+        long defaultDeadline() {
+            long ttl = afterWrite > 0L ? afterWrite : afterAccess;
+            return ttl > 0L ? deadline(System.nanoTime(), ttl) : 0L;
+        }
+    }
+
+    /**
+     * 所有map共用的过期线程
+     */
+    private static final class Expirer {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "off-heap-expirer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 过期任务只弱引用map，map被回收后任务自行取消
+     */
+    private static final class ExpireTask implements Runnable {
+        final WeakReference<ConcurrentOffHeapHashMap<?, ?>> map;
+
+        ExpireTask(ConcurrentOffHeapHashMap<?, ?> map) {
+            this.map = new WeakReference<>(map);
+        }
+
+        @Override
+        public void run() {
+            ConcurrentOffHeapHashMap<?, ?> m = map.get();
+            if (m == null) {
+                throw new CancellationException();
+            }
+            try {
+                m.expireEntries();
+            } catch (RuntimeException e) {
+                // 写前日志出错时由之后的写操作抛出，这里只保证过期任务继续运行
+            }
+        }
+    }
+
+    static long deadline(long now, long ttl) {
+        long at = now + ttl;
+        return at == 0L ? 1L : at;
+    }
+
+    private Expiry<K, V> expiry() {
+        Expiry<K, V> x = expiry;
+        if (x == null) {
+            Expiry<K, V> created = new Expiry<>();
+            if ((x = (Expiry<K, V>) EXPIRY.compareAndExchange(this, null, created)) == null) {
+                x = created;
+                x.task = Expirer.INSTANCE.scheduleWithFixedDelay(new ExpireTask(this),
+                        EXPIRE_PERIOD_MILLIS, EXPIRE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return x;
+    }
+
+    private void stopExpiry() {
+        Expiry<K, V> x = expiry;
+        if (x != null) {
+            ScheduledFuture<?> task = x.task;
+            if (task != null) {
+                task.cancel(false);
+            }
+            synchronized (x) {
+                expiry = null;
+            }
+        }
+    }
+
+    /**
+     * 推进时间轮，到期的节点按桶分组，每个桶加一次锁摘除其中所有真正过期的节点，最后一起释放键值块。
+     * 时间轮里的节点可能已被迁移复制或删除，按键块地址在当前表中重新查找；过期时刻被推迟的重新安排
+     */
+    final void expireEntries() {
+        Expiry<K, V> x = expiry;
+        if (x == null) {
+            return;
+        }
+        synchronized (x) {
+            if (expiry != x) {
+                return;
+            }
+            for (Node<K, V> e; (e = x.pending.poll()) != null; ) {
+                long at = e.expireAt;
+                if (at != 0L) {
+                    x.wheel.schedule(e, at);
+                }
+            }
+            List<Node<K, V>> due = new ArrayList<>();
+            long now = System.nanoTime();
+            x.wheel.advance(now, due::add);
+            Node<K, V>[] tab = table;
+            if (due.isEmpty() || tab == null) {
+                return;
+            }
+            int mask = tab.length - 1;
+            due.sort((a, b) -> Integer.compare((int) a.hash & mask, (int) b.hash & mask));
+            WriteAheadLog log = this.log;
+            List<Node<K, V>> removed = new ArrayList<>();
+            long lsn = 0L;
+            for (int from = 0, size = due.size(); from < size; ) {
+                int i = (int) due.get(from).hash & mask, to = from + 1;
+                while (to < size && ((int) due.get(to).hash & mask) == i) {
+                    to++;
+                }
+                while (from < to) {
+                    Node<K, V> f = tabAt(tab, i);
+                    if (f == null) {
+                        break;
+                    }
+                    if (f instanceof ForwardingNode) {
+                        // 正在迁移，留到下一轮按新表处理
+                        for (; from < to; from++) {
+                            x.pending.add(due.get(from));
+                        }
+                        break;
+                    }
+                    synchronized (f) {
+                        if (tabAt(tab, i) != f) {
+                            continue;
+                        }
+                        // 摘掉桶头后锁就不再保护这个桶，剩下的节点重新加锁处理
+                        boolean headRemoved = false;
+                        for (; from < to && !headRemoved; from++) {
+                            Node<K, V> d = due.get(from);
+                            for (Node<K, V> p = f, e = f; e != null; p = e, e = e.next) {
+                                if (e.keyAddress == d.keyAddress) {
+                                    long at = e.expireAt;
+                                    if (at != 0L && at - now > 0L) {
+                                        x.wheel.schedule(e, at);
+                                    } else if (at != 0L) {
+                                        unlink(tab, i, p, e);
+                                        if (log != null) {
+                                            lsn = logRemove(log, e);
+                                        }
+                                        removed.add(e);
+                                        headRemoved = e == f;
+                                    }
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+                from = to;
+            }
+            if (removed.isEmpty()) {
+                return;
+            }
+            addCount(-removed.size(), -1);
+            long bytes = 0L;
+            for (Node<K, V> e : removed) {
+                if (eviction != null) {
+                    bytes += e.keyLength + valueLength(e.valueAddress);
+                }
+                e.free(allocator);
+            }
+            if (eviction != null) {
+                eviction.bytes.add(-bytes);
+            }
+            if (lsn != 0L) {
+                log.commit(lsn);
             }
         }
     }
 
     @Override
     public int size() {
-        return size.get();
+        long n = sumCount();
+        return (n < 0L) ? 0 : (n > (long) Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
+    }
+
+    /**
+     * 返回元素个数，超过Integer.MAX_VALUE时应使用此方法代替size()。
+     * 并发修改期间返回的是估计值
+     */
+    public long mappingCount() {
+        long n = sumCount();
+        return (n < 0L) ? 0L : n;
     }
 
     @Override
     public boolean isEmpty() {
-        return size.get() == 0;
+        return sumCount() <= 0L;
+    }
+
+    /**
+     * 把键值的原始字节与哈希写到快照文件，不解码也不重新编码，返回写出的条目数
+     * <p>
+     * 遍历与迭代器一样是弱一致的，需要确切的时间点快照时应在没有并发写的情况下调用
+     */
+    public long snapshotTo(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            SnapshotFile.Writer out = new SnapshotFile.Writer(channel);
+            Node<K, V>[] tab = table;
+            if (tab != null) {
+                Traverser<K, V> it = new Traverser<>(tab, tab.length, 0, tab.length);
+                for (Node<K, V> e; (e = it.advance()) != null; ) {
+                    long k = e.keyAddress, v = e.valueAddress;
+                    ByteBuffer vb = allocator.buffer(v);
+                    int vo = OffHeapAllocator.offset(v);
+                    out.add(e.hash, allocator.buffer(k).slice(OffHeapAllocator.offset(k), e.keyLength),
+                            vb.slice(vo + VALUE_HEADER, vb.getInt(vo)));
+                }
+            }
+            return out.finish(tab == null ? 0 : tab.length, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * 从snapshotTo写出的文件批量加载，已有的键被覆盖，返回读入的条目数
+     * <p>
+     * 先按文件头中的条目数一次扩容到位，加载过程中不再扩容；键值字节直接读进新分配的堆外块，
+     * 使用快照中存储的哈希，不重新计算
+     */
+    public long loadFrom(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            SnapshotFile.Reader in = new SnapshotFile.Reader(file, channel, keyCodec, valueCodec);
+            long expected = mappingCount() + in.count();
+            tryPresize((int) Math.min(MAXIMUM_CAPACITY, (long) (expected / (double) loadFactor) + 1L));
+            int max = SnapshotFile.BATCH_RECORDS;
+            long[] keys = new long[max], values = new long[max];
+            ByteBuffer[] dsts = new ByteBuffer[2 * max];
+            long loaded = 0L;
+            for (int n; (n = in.nextBatch()) > 0; ) {
+                int allocated = 0;
+                try {
+                    for (; allocated < n; allocated++) {
+                        int kl = in.keyLength(allocated), vl = in.valueLength(allocated);
+                        long k = keys[allocated] = allocator.allocate(kl);
+                        long v = values[allocated] = allocator.allocate(VALUE_HEADER + vl);
+                        ByteBuffer vb = allocator.buffer(v);
+                        int vo = OffHeapAllocator.offset(v);
+                        vb.putInt(vo, vl);
+                        dsts[2 * allocated] = allocator.buffer(k).slice(OffHeapAllocator.offset(k), kl);
+                        dsts[2 * allocated + 1] = vb.slice(vo + VALUE_HEADER, vl);
+                    }
+                    in.read(dsts, 2 * n);
+                } catch (IOException | RuntimeException e) {
+                    for (int i = 0; i < allocated; i++) {
+                        allocator.free(keys[i]);
+                        allocator.free(values[i]);
+                    }
+                    throw e;
+                }
+                for (int i = 0; i < n; i++) {
+                    allocator.free(putBlocks(in.hash(i), dsts[2 * i], keys[i], values[i]));
+                }
+                loaded += n;
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * 堆外数据不能直接序列化，按键值对逐个写出
+     */
+    private void writeObject(ObjectOutputStream s) throws IOException {
+        s.defaultWriteObject();
+        Node<K, V>[] tab = table;
+        if (tab != null) {
+            Traverser<K, V> it = new Traverser<>(tab, tab.length, 0, tab.length);
+            for (Node<K, V> e; (e = it.advance()) != null; ) {
+                s.writeObject(e.getKey(this));
+                s.writeObject(e.getValue(this));
+            }
+        }
+        s.writeObject(null);
+        s.writeObject(null);
+    }
+
+    private void readObject(ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        allocator = new OffHeapAllocator();
+        for (; ; ) {
+            K key = (K) s.readObject();
+            V value = (V) s.readObject();
+            if (key == null) {
+                break;
+            }
+            put(key, value);
+        }
     }
 }
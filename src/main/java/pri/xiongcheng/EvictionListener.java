@@ -0,0 +1,18 @@
+package pri.xiongcheng;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 有界模式下条目被淘汰时的回调，在桶锁之外调用
+ */
+@FunctionalInterface
+public interface EvictionListener {
+
+    /**
+     * key与value的[position, limit)为被淘汰条目编码后的原始字节，直接引用堆外块，只读且只在回调期间有效，
+     * 需要保留时复制到自己的缓冲区
+     */
+    void onEviction(ByteBuffer key, ByteBuffer value);
+}
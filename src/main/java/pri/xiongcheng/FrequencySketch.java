@@ -0,0 +1,83 @@
+package pri.xiongcheng;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * TinyLFU的访问频率估计：4位计数器的Count-Min Sketch，每个long存16个计数器。
+ * 一个哈希选中一个long中的一组4个计数器，4个种子各取一个long，频率取4个计数器的最小值，最大为15。
+ * 累计增加次数达到采样数(计数器long数的10倍)时所有计数器减半，让历史频率逐渐衰减
+ * <p>
+ * 读写都不加锁，并发的增加可能丢失一部分，只影响估计精度
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAXIMUM_LENGTH = 1 << 26;
+
+    private volatile long[] table = new long[16];
+    private int additions;
+
+    /**
+     * 按预计的条目数扩大计数器数组，扩大时丢弃已有的计数
+     */
+    void ensureCapacity(long expectedSize) {
+        int length = (int) Math.min(MAXIMUM_LENGTH, Math.max(16L, expectedSize));
+        length = ConcurrentOffHeapHashMap.tableSizeFor(length);
+        if (table.length < length) {
+            additions = 0;
+            table = new long[length];
+        }
+    }
+
+    int frequency(long hash) {
+        long[] t = table;
+        int start = ((int) hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int shift = (start + i) << 2;
+            int count = (int) ((t[indexOf(t, hash, i)] >>> shift) & 0xFL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(long hash) {
+        long[] t = table;
+        int start = ((int) hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(t, hash, i);
+            long offset = (long) (start + i) << 2;
+            long mask = 0xFL << offset;
+            long v = t[index];
+            if ((v & mask) != mask) {
+                t[index] = v + (1L << offset);
+                added = true;
+            }
+        }
+        if (added && ++additions >= 10 * t.length) {
+            reset(t);
+        }
+    }
+
+    private static int indexOf(long[] t, long hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & (t.length - 1);
+    }
+
+    /**
+     * 所有计数器减半，奇数计数器减半时舍去的1按每次增加4个计数器折算，从additions中扣掉
+     */
+    private void reset(long[] t) {
+        int odd = 0;
+        for (int i = 0; i < t.length; i++) {
+            odd += Long.bitCount(t[i] & ONE_MASK);
+            t[i] = (t[i] >>> 1) & RESET_MASK;
+        }
+        additions = (additions >>> 1) - (odd >>> 2);
+    }
+}
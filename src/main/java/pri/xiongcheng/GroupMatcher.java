@@ -0,0 +1,81 @@
+package pri.xiongcheng;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 控制字节组匹配，一次比较16个控制字节，返回的掩码第i位对应组内第i个槽位
+ * <p>
+ * 运行时存在jdk.incubator.vector模块时使用向量指令，否则按8字节一次的SWAR方式比较
+ */
+abstract class GroupMatcher {
+
+    static final int GROUP_SIZE = 16;
+    static final byte EMPTY = (byte) 0x80;
+    static final byte DELETED = (byte) 0xFE;
+
+    static final GroupMatcher INSTANCE = load();
+
+    /**
+     * 控制字节等于h2的槽位，SWAR实现可能多报紧跟在匹配之后的槽位，调用方需再比较键
+     */
+    abstract int match(ByteBuffer ctrl, int offset, byte h2);
+
+    abstract int matchEmpty(ByteBuffer ctrl, int offset);
+
+    abstract int matchEmptyOrDeleted(ByteBuffer ctrl, int offset);
+
+    private static GroupMatcher load() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (GroupMatcher) Class.forName("pri.xiongcheng.VectorGroupMatcher")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError ignored) {
+            }
+        }
+        return new Swar();
+    }
+
+    static final class Swar extends GroupMatcher {
+
+        private static final VarHandle LONG_LE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final long LSB = 0x0101010101010101L;
+        private static final long MSB = 0x8080808080808080L;
+
+        @Override
+        int match(ByteBuffer ctrl, int offset, byte h2) {
+            long pattern = LSB * (h2 & 0xFF);
+            long lo = (long) LONG_LE.get(ctrl, offset) ^ pattern;
+            long hi = (long) LONG_LE.get(ctrl, offset + Long.BYTES) ^ pattern;
+            return bits((lo - LSB) & ~lo & MSB) | bits((hi - LSB) & ~hi & MSB) << 8;
+        }
+
+        /**
+         * EMPTY(1000_0000)最高位为1且第1位为0
+         */
+        @Override
+        int matchEmpty(ByteBuffer ctrl, int offset) {
+            long lo = (long) LONG_LE.get(ctrl, offset);
+            long hi = (long) LONG_LE.get(ctrl, offset + Long.BYTES);
+            return bits(lo & (~lo << 6) & MSB) | bits(hi & (~hi << 6) & MSB) << 8;
+        }
+
+        @Override
+        int matchEmptyOrDeleted(ByteBuffer ctrl, int offset) {
+            long lo = (long) LONG_LE.get(ctrl, offset);
+            long hi = (long) LONG_LE.get(ctrl, offset + Long.BYTES);
+            return bits(lo & MSB) | bits(hi & MSB) << 8;
+        }
+
+        /**
+         * 把每个字节的最高位收集到低8位
+         */
+        private static int bits(long m) {
+            return (int) (((m >>> 7) * 0x0102040810204080L) >>> 56);
+        }
+    }
+}
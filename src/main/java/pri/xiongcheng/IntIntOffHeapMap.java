@@ -0,0 +1,149 @@
+package pri.xiongcheng;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * int到int的堆外map，槽位8字节：键4字节、值4字节，键值都不装箱
+ * <p>
+ * 不存在的键返回构造时指定的missingValue
+ */
+public final class IntIntOffHeapMap extends PrimitiveOffHeapTable {
+
+    private static final int SLOT_SIZE = 8;
+    private final int missingValue;
+
+    public IntIntOffHeapMap() {
+        this(0, 0);
+    }
+
+    public IntIntOffHeapMap(int capacity, int missingValue) {
+        super(capacity, Integer.BYTES, SLOT_SIZE);
+        this.missingValue = missingValue;
+    }
+
+    public int missingValue() {
+        return missingValue;
+    }
+
+    public int get(int key) {
+        return getOrDefault(key, missingValue);
+    }
+
+    /**
+     * 先乐观读，校验失败后再持读锁重读
+     */
+    public int getOrDefault(int key, int defaultValue) {
+        long hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        Table t = table;
+        int slot = find(t, key, hash);
+        int value = slot < 0 ? defaultValue : t.slots.getInt(slot * SLOT_SIZE + Integer.BYTES);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                t = table;
+                slot = find(t, key, hash);
+                value = slot < 0 ? defaultValue : t.slots.getInt(slot * SLOT_SIZE + Integer.BYTES);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    public boolean containsKey(int key) {
+        long hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        boolean found = find(table, key, hash) >= 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = find(table, key, hash) >= 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 返回旧值，键不存在时返回missingValue
+     */
+    public int put(int key, int value) {
+        long hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int slot = findOrInsert(key, hash);
+            if (slot >= 0) {
+                ByteBuffer slots = table.slots;
+                int old = slots.getInt(slot * SLOT_SIZE + Integer.BYTES);
+                slots.putInt(slot * SLOT_SIZE + Integer.BYTES, value);
+                return old;
+            }
+            table.slots.putInt(~slot * SLOT_SIZE + Integer.BYTES, value);
+            publish(~slot, hash);
+            return missingValue;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 原子地加上delta并返回新值，键不存在时从0开始
+     */
+    public int addAndGet(int key, int delta) {
+        long hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int slot = findOrInsert(key, hash);
+            ByteBuffer slots = table.slots;
+            if (slot >= 0) {
+                int value = slots.getInt(slot * SLOT_SIZE + Integer.BYTES) + delta;
+                slots.putInt(slot * SLOT_SIZE + Integer.BYTES, value);
+                return value;
+            }
+            slots.putInt(~slot * SLOT_SIZE + Integer.BYTES, delta);
+            publish(~slot, hash);
+            return delta;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int remove(int key) {
+        long hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = find(t, key, hash);
+            if (slot < 0) {
+                return missingValue;
+            }
+            int old = t.slots.getInt(slot * SLOT_SIZE + Integer.BYTES);
+            erase(slot);
+            return old;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 持读锁遍历，action中不能修改本map
+     */
+    public void forEach(EntryConsumer action) {
+        long stamp = lock.readLock();
+        try {
+            forEachSlot((slots, slot) -> action.accept(slots.getInt(slot * SLOT_SIZE),
+                    slots.getInt(slot * SLOT_SIZE + Integer.BYTES)));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(int key, int value);
+    }
+}
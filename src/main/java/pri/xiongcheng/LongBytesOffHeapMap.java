@@ -0,0 +1,141 @@
+package pri.xiongcheng;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * long到字节数组的堆外map，槽位16字节：键8字节、值块地址8字节。
+ * 值块由slab分配器分配，前4个字节为长度
+ */
+public final class LongBytesOffHeapMap extends PrimitiveOffHeapTable {
+
+    private static final int SLOT_SIZE = 16;
+    private static final int VALUE_HEADER = ConcurrentOffHeapHashMap.VALUE_HEADER;
+    private final OffHeapAllocator allocator = new OffHeapAllocator();
+
+    public LongBytesOffHeapMap() {
+        this(0);
+    }
+
+    public LongBytesOffHeapMap(int capacity) {
+        super(capacity, Long.BYTES, SLOT_SIZE);
+    }
+
+    /**
+     * 值块可能被并发的写线程释放，读取时持读锁
+     */
+    public byte[] get(long key) {
+        long hash = hash(key);
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            int slot = find(t, key, hash);
+            return slot < 0 ? null : readValue(t.slots.getLong(slot * SLOT_SIZE + Long.BYTES));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean containsKey(long key) {
+        long hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        boolean found = find(table, key, hash) >= 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = find(table, key, hash) >= 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 返回旧值，键不存在时返回null
+     */
+    public byte[] put(long key, byte[] value) {
+        long hash = hash(key);
+        long address = storeValue(value);
+        long stamp = lock.writeLock();
+        try {
+            int slot = findOrInsert(key, hash);
+            ByteBuffer slots = table.slots;
+            if (slot >= 0) {
+                long old = slots.getLong(slot * SLOT_SIZE + Long.BYTES);
+                slots.putLong(slot * SLOT_SIZE + Long.BYTES, address);
+                byte[] oldValue = readValue(old);
+                allocator.free(old);
+                return oldValue;
+            }
+            slots.putLong(~slot * SLOT_SIZE + Long.BYTES, address);
+            publish(~slot, hash);
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public byte[] remove(long key) {
+        long hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = find(t, key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            long old = t.slots.getLong(slot * SLOT_SIZE + Long.BYTES);
+            byte[] oldValue = readValue(old);
+            erase(slot);
+            allocator.free(old);
+            return oldValue;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 持读锁遍历，action中不能修改本map
+     */
+    public void forEach(EntryConsumer action) {
+        long stamp = lock.readLock();
+        try {
+            forEachSlot((slots, slot) -> action.accept(slots.getLong(slot * SLOT_SIZE),
+                    readValue(slots.getLong(slot * SLOT_SIZE + Long.BYTES))));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    void releaseAll() {
+        forEachSlot((slots, slot) -> allocator.free(slots.getLong(slot * SLOT_SIZE + Long.BYTES)));
+    }
+
+    /**
+     * 值块在写锁之外分配和写入
+     */
+    private long storeValue(byte[] value) {
+        long address = allocator.allocate(VALUE_HEADER + value.length);
+        ByteBuffer buf = allocator.buffer(address);
+        int offset = OffHeapAllocator.offset(address);
+        buf.putInt(offset, value.length);
+        buf.put(offset + VALUE_HEADER, value);
+        return address;
+    }
+
+    private byte[] readValue(long address) {
+        ByteBuffer buf = allocator.buffer(address);
+        int offset = OffHeapAllocator.offset(address);
+        byte[] bytes = new byte[buf.getInt(offset)];
+        buf.get(offset + VALUE_HEADER, bytes);
+        return bytes;
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long key, byte[] value);
+    }
+}
@@ -0,0 +1,149 @@
+package pri.xiongcheng;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * long到long的堆外map，槽位16字节：键8字节、值8字节，键值都不装箱
+ * <p>
+ * 不存在的键返回构造时指定的missingValue
+ */
+public final class LongLongOffHeapMap extends PrimitiveOffHeapTable {
+
+    private static final int SLOT_SIZE = 16;
+    private final long missingValue;
+
+    public LongLongOffHeapMap() {
+        this(0, 0L);
+    }
+
+    public LongLongOffHeapMap(int capacity, long missingValue) {
+        super(capacity, Long.BYTES, SLOT_SIZE);
+        this.missingValue = missingValue;
+    }
+
+    public long missingValue() {
+        return missingValue;
+    }
+
+    public long get(long key) {
+        return getOrDefault(key, missingValue);
+    }
+
+    /**
+     * 先乐观读，校验失败后再持读锁重读
+     */
+    public long getOrDefault(long key, long defaultValue) {
+        long hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        Table t = table;
+        int slot = find(t, key, hash);
+        long value = slot < 0 ? defaultValue : t.slots.getLong(slot * SLOT_SIZE + Long.BYTES);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                t = table;
+                slot = find(t, key, hash);
+                value = slot < 0 ? defaultValue : t.slots.getLong(slot * SLOT_SIZE + Long.BYTES);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    public boolean containsKey(long key) {
+        long hash = hash(key);
+        long stamp = lock.tryOptimisticRead();
+        boolean found = find(table, key, hash) >= 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = find(table, key, hash) >= 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 返回旧值，键不存在时返回missingValue
+     */
+    public long put(long key, long value) {
+        long hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int slot = findOrInsert(key, hash);
+            if (slot >= 0) {
+                ByteBuffer slots = table.slots;
+                long old = slots.getLong(slot * SLOT_SIZE + Long.BYTES);
+                slots.putLong(slot * SLOT_SIZE + Long.BYTES, value);
+                return old;
+            }
+            table.slots.putLong(~slot * SLOT_SIZE + Long.BYTES, value);
+            publish(~slot, hash);
+            return missingValue;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 原子地加上delta并返回新值，键不存在时从0开始
+     */
+    public long addAndGet(long key, long delta) {
+        long hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            int slot = findOrInsert(key, hash);
+            ByteBuffer slots = table.slots;
+            if (slot >= 0) {
+                long value = slots.getLong(slot * SLOT_SIZE + Long.BYTES) + delta;
+                slots.putLong(slot * SLOT_SIZE + Long.BYTES, value);
+                return value;
+            }
+            slots.putLong(~slot * SLOT_SIZE + Long.BYTES, delta);
+            publish(~slot, hash);
+            return delta;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public long remove(long key) {
+        long hash = hash(key);
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = find(t, key, hash);
+            if (slot < 0) {
+                return missingValue;
+            }
+            long old = t.slots.getLong(slot * SLOT_SIZE + Long.BYTES);
+            erase(slot);
+            return old;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 持读锁遍历，action中不能修改本map
+     */
+    public void forEach(EntryConsumer action) {
+        long stamp = lock.readLock();
+        try {
+            forEachSlot((slots, slot) -> action.accept(slots.getLong(slot * SLOT_SIZE),
+                    slots.getLong(slot * SLOT_SIZE + Long.BYTES)));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long key, long value);
+    }
+}
@@ -0,0 +1,419 @@
+package pri.xiongcheng;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 持久化模式的文件存储，作为分配器的SlabSource提供映射文件中的slab
+ * <p>
+ * 文件布局：4KB文件头，之后是数据区与目录。数据区由若干映射区域组成，普通slab从64MB的区域中顺序切分，
+ * 超过slab大小的块单独映射一个区域，从而绕开单个映射2GB的限制。
+ * 目录在关闭时写到数据区之后，包含区域表、slab状态和每个节点的(哈希, 键地址, 值地址, 键长度)，
+ * 重新打开时按存储的哈希直接挂回桶中，不读取键也不重新计算哈希
+ * <p>
+ * 打开期间文件头标记为OPEN，只有正常关闭的文件才能再次打开
+ */
+final class MappedFileStorage implements OffHeapAllocator.SlabSource, Closeable {
+
+    static final int HEADER_SIZE = 4096;
+    static final int CHUNK_SIZE = 64 * OffHeapAllocator.SLAB_SIZE;
+    private static final int MAGIC = 0x4F48484D;
+    private static final int VERSION = 1;
+    private static final int STATE_CLEAN = 1;
+    private static final int STATE_OPEN = 2;
+    private static final int PAGE_SIZE = 4096;
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int STATE_OFFSET = 8;
+    private static final int SLAB_SIZE_OFFSET = 12;
+    private static final int CHUNK_SIZE_OFFSET = 16;
+    private static final int TABLE_LENGTH_OFFSET = 20;
+    private static final int REGION_COUNT_OFFSET = 24;
+    private static final int SLAB_COUNT_OFFSET = 28;
+    private static final int DATA_END_OFFSET = 32;
+    private static final int ENTRY_COUNT_OFFSET = 40;
+    private static final int CODECS_OFFSET = 64;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<Region> regions = new ArrayList<>();
+    private long[] slabOffsets = new long[16];
+    private Region current;
+    private long dataEnd;
+
+    /**
+     * 一次映射的文件区域，used为已切分出去的字节数
+     */
+    static final class Region {
+        final long offset;
+        final MappedByteBuffer buffer;
+        int used;
+
+        Region(long offset, MappedByteBuffer buffer, int used) {
+            this.offset = offset;
+            this.buffer = buffer;
+            this.used = used;
+        }
+    }
+
+    private MappedFileStorage(Path path, FileChannel channel) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+    }
+
+    /**
+     * 创建新文件，已存在的文件会被截断
+     */
+    static MappedFileStorage create(Path path, Codec<?> keyCodec, Codec<?> valueCodec) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            MappedFileStorage storage = new MappedFileStorage(path, channel);
+            ByteBuffer h = storage.header;
+            h.putInt(MAGIC_OFFSET, MAGIC);
+            h.putInt(VERSION_OFFSET, VERSION);
+            h.putInt(SLAB_SIZE_OFFSET, OffHeapAllocator.SLAB_SIZE);
+            h.putInt(CHUNK_SIZE_OFFSET, CHUNK_SIZE);
+            writeCodecs(h, CODECS_OFFSET, keyCodec, valueCodec);
+            storage.dataEnd = HEADER_SIZE;
+            storage.setState(STATE_OPEN);
+            return storage;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 打开正常关闭的文件，校验文件头并重新映射所有区域
+     */
+    static MappedFileStorage open(Path path, Codec<?> keyCodec, Codec<?> valueCodec) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(path + " is not an off-heap map file");
+            }
+            MappedFileStorage storage = new MappedFileStorage(path, channel);
+            ByteBuffer h = storage.header;
+            if (h.getInt(MAGIC_OFFSET) != MAGIC) {
+                throw new IOException(path + " is not an off-heap map file");
+            }
+            if (h.getInt(VERSION_OFFSET) != VERSION || h.getInt(SLAB_SIZE_OFFSET) != OffHeapAllocator.SLAB_SIZE
+                    || h.getInt(CHUNK_SIZE_OFFSET) != CHUNK_SIZE) {
+                throw new IOException(path + " has an incompatible layout");
+            }
+            if (h.getInt(STATE_OFFSET) != STATE_CLEAN) {
+                throw new IOException(path + " was not closed cleanly");
+            }
+            checkCodecs(path, h, CODECS_OFFSET, keyCodec, valueCodec);
+            storage.dataEnd = h.getLong(DATA_END_OFFSET);
+            return storage;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int tableLength() {
+        return header.getInt(TABLE_LENGTH_OFFSET);
+    }
+
+    long entryCount() {
+        return header.getLong(ENTRY_COUNT_OFFSET);
+    }
+
+    private static String codecName(Codec<?> codec) {
+        return codec.getClass().getName();
+    }
+
+    /**
+     * 在文件头的offset处写入键值编解码器的类名，打开时据此拒绝编解码器不一致的文件
+     */
+    static void writeCodecs(ByteBuffer h, int offset, Codec<?> keyCodec, Codec<?> valueCodec) {
+        int p = offset;
+        for (Codec<?> codec : new Codec<?>[]{keyCodec, valueCodec}) {
+            byte[] name = codecName(codec).getBytes(StandardCharsets.UTF_8);
+            if (p + 2 + name.length > h.capacity()) {
+                throw new IllegalArgumentException("codec class name too long: " + codecName(codec));
+            }
+            h.putShort(p, (short) name.length);
+            h.put(p + 2, name);
+            p += 2 + name.length;
+        }
+    }
+
+    static void checkCodecs(Path path, ByteBuffer h, int offset, Codec<?> keyCodec, Codec<?> valueCodec)
+            throws IOException {
+        String[] names = codecNames(h, offset);
+        if (!Arrays.equals(names, new String[]{codecName(keyCodec), codecName(valueCodec)})) {
+            throw new IOException(path + " was written with codecs " + Arrays.toString(names));
+        }
+    }
+
+    private static String[] codecNames(ByteBuffer h, int offset) {
+        String[] names = new String[2];
+        int p = offset;
+        for (int i = 0; i < 2; i++) {
+            int length = h.getShort(p) & 0xFFFF;
+            if (p + 2 + length > h.capacity()) {
+                return names;
+            }
+            byte[] name = new byte[length];
+            h.get(p + 2, name);
+            names[i] = new String(name, StandardCharsets.UTF_8);
+            p += 2 + length;
+        }
+        return names;
+    }
+
+    private void setState(int state) {
+        header.putInt(STATE_OFFSET, state);
+        header.force();
+    }
+
+    private Region map(long offset, long length, int used) throws IOException {
+        Region region = new Region(offset, channel.map(FileChannel.MapMode.READ_WRITE, offset, length), used);
+        regions.add(region);
+        return region;
+    }
+
+    @Override
+    public ByteBuffer allocate(int id, int capacity) {
+        try {
+            Region region;
+            int start;
+            if (capacity != OffHeapAllocator.SLAB_SIZE) {
+                long length = (capacity + PAGE_SIZE - 1L) & -PAGE_SIZE;
+                region = map(dataEnd, length, (int) length);
+                dataEnd += length;
+                start = 0;
+            } else {
+                if ((region = current) == null || region.used + capacity > region.buffer.capacity()) {
+                    current = region = map(dataEnd, CHUNK_SIZE, 0);
+                    dataEnd += CHUNK_SIZE;
+                }
+                start = region.used;
+                region.used += capacity;
+            }
+            if (id >= slabOffsets.length) {
+                slabOffsets = Arrays.copyOf(slabOffsets, Math.max(slabOffsets.length << 1, id + 1));
+            }
+            slabOffsets[id] = region.offset + start;
+            return region.buffer.slice(start, capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to extend " + path, e);
+        }
+    }
+
+    /**
+     * 只有大块独占的区域会被释放，区域从区域表中移除，其文件空间不再复用
+     */
+    @Override
+    public void release(int id, ByteBuffer buffer) {
+        long offset = slabOffsets[id];
+        regions.removeIf(r -> r.offset == offset && r != current);
+        slabOffsets[id] = 0;
+    }
+
+    /**
+     * 重新打开时按记录的区域表映射所有区域，最后一个未用满的普通区域继续用于分配
+     */
+    private ByteBuffer slabBuffer(long offset, int capacity) {
+        for (Region r : regions) {
+            if (offset >= r.offset && offset + capacity <= r.offset + r.buffer.capacity()) {
+                return r.buffer.slice((int) (offset - r.offset), capacity);
+            }
+        }
+        throw new IllegalStateException("slab at " + offset + " is outside every mapped region");
+    }
+
+    /**
+     * 读取目录：映射区域、恢复分配器中的slab，再逐条回调节点记录
+     */
+    void restore(OffHeapAllocator allocator, EntryVisitor visitor) throws IOException {
+        ByteBuffer h = header;
+        int regionCount = h.getInt(REGION_COUNT_OFFSET);
+        int slabCount = h.getInt(SLAB_COUNT_OFFSET);
+        long entries = h.getLong(ENTRY_COUNT_OFFSET);
+        DirectoryReader in = new DirectoryReader(dataEnd);
+        for (int i = 0; i < regionCount; i++) {
+            long offset = in.getLong(), length = in.getLong();
+            int used = in.getInt();
+            Region r = map(offset, length, used);
+            if (length == CHUNK_SIZE && used < CHUNK_SIZE) {
+                current = r;
+            }
+        }
+        for (int i = 0; i < slabCount; i++) {
+            int id = in.getInt();
+            long offset = in.getLong();
+            int capacity = in.getInt(), blockSize = in.getInt(), top = in.getInt(),
+                    freeHead = in.getInt(), liveBlocks = in.getInt();
+            if (id >= slabOffsets.length) {
+                slabOffsets = Arrays.copyOf(slabOffsets, Math.max(slabOffsets.length << 1, id + 1));
+            }
+            slabOffsets[id] = offset;
+            allocator.restoreSlab(id, slabBuffer(offset, capacity), blockSize, top, freeHead, liveBlocks);
+        }
+        allocator.restoreFinished();
+        for (long i = 0; i < entries; i++) {
+            long hash = in.getLong(), keyAddress = in.getLong(), valueAddress = in.getLong();
+            visitor.visit(hash, keyAddress, in.getInt(), valueAddress);
+        }
+        setState(STATE_OPEN);
+    }
+
+    interface EntryVisitor {
+        void visit(long hash, long keyAddress, int keyLength, long valueAddress);
+    }
+
+    /**
+     * 关闭时写出目录并刷盘，最后把文件头标记为CLEAN。调用时map上不能有并发写
+     */
+    void checkpoint(OffHeapAllocator allocator, int tableLength, EntrySource entries) throws IOException {
+        try {
+            writeDirectory(allocator, tableLength, entries);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void writeDirectory(OffHeapAllocator allocator, int tableLength, EntrySource entries) throws IOException {
+        DirectoryWriter out = new DirectoryWriter(dataEnd);
+        for (Region r : regions) {
+            out.putLong(r.offset);
+            out.putLong(r.buffer.capacity());
+            out.putInt(r.used);
+        }
+        int[] slabCount = {0};
+        allocator.forEachSlab(slab -> {
+            out.putInt(slab.id);
+            out.putLong(slabOffsets[slab.id]);
+            out.putInt(slab.buffer.capacity());
+            out.putInt(slab.blockSize);
+            out.putInt(slab.top);
+            out.putInt(slab.freeHead);
+            out.putInt(slab.liveBlocks);
+            slabCount[0]++;
+        });
+        long[] count = {0};
+        entries.forEach((hash, keyAddress, keyLength, valueAddress) -> {
+            out.putLong(hash);
+            out.putLong(keyAddress);
+            out.putLong(valueAddress);
+            out.putInt(keyLength);
+            count[0]++;
+        });
+        out.flush();
+        for (Region r : regions) {
+            r.buffer.force();
+        }
+        channel.force(false);
+        ByteBuffer h = header;
+        h.putInt(TABLE_LENGTH_OFFSET, tableLength);
+        h.putInt(REGION_COUNT_OFFSET, regions.size());
+        h.putInt(SLAB_COUNT_OFFSET, slabCount[0]);
+        h.putLong(DATA_END_OFFSET, dataEnd);
+        h.putLong(ENTRY_COUNT_OFFSET, count[0]);
+        setState(STATE_CLEAN);
+    }
+
+    interface EntrySource {
+        void forEach(EntryVisitor visitor);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 顺序写目录，写满一个缓冲区后按绝对位置写入文件
+     */
+    private final class DirectoryWriter {
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        private long position;
+
+        DirectoryWriter(long position) {
+            this.position = position;
+        }
+
+        void putInt(int v) {
+            ensure(Integer.BYTES);
+            buf.putInt(v);
+        }
+
+        void putLong(long v) {
+            ensure(Long.BYTES);
+            buf.putLong(v);
+        }
+
+        private void ensure(int n) {
+            if (buf.remaining() < n) {
+                flush();
+            }
+        }
+
+        void flush() {
+            buf.flip();
+            try {
+                while (buf.hasRemaining()) {
+                    position += channel.write(buf, position);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buf.clear();
+        }
+    }
+
+    private final class DirectoryReader {
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).limit(0);
+        private long position;
+
+        DirectoryReader(long position) {
+            this.position = position;
+        }
+
+        int getInt() throws IOException {
+            fill(Integer.BYTES);
+            return buf.getInt();
+        }
+
+        long getLong() throws IOException {
+            fill(Long.BYTES);
+            return buf.getLong();
+        }
+
+        private void fill(int n) throws IOException {
+            if (buf.remaining() >= n) {
+                return;
+            }
+            buf.compact();
+            while (buf.position() < n) {
+                int read = channel.read(buf, position);
+                if (read < 0) {
+                    throw new IOException(path + " directory is truncated");
+                }
+                position += read;
+            }
+            buf.flip();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package pri.xiongcheng;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 堆外内存slab分配器
+ * <p>
+ * 按大小分级(size class)从直接内存slab中切分内存块，释放的块通过slab内的空闲链表复用。
+ * 超过slab大小的块单独分配一个slab。地址编码为 slab编号(高32位) | slab内偏移(低32位)，
+ * 地址0表示空地址。
+ * <p>
+ * slab的内存由SlabSource提供，默认为直接内存，持久化模式下为映射文件中的区域
+ */
+final class OffHeapAllocator {
+
+    static final int SLAB_SIZE = 1 << 20;
+    static final int MIN_BLOCK_SIZE = 16;
+    private static final int NUM_SIZE_CLASSES = 65;
+    private static final int NO_BLOCK = -1;
+
+    /**
+     * 各级块大小：16之后每个2的幂区间再四等分，内部碎片不超过25%
+     */
+    private static final int[] CLASS_SIZES = new int[NUM_SIZE_CLASSES];
+
+    static {
+        CLASS_SIZES[0] = MIN_BLOCK_SIZE;
+        for (int i = 1; i < NUM_SIZE_CLASSES; i++) {
+            int shift = (i - 1) / 4 + 4;
+            int sub = (i - 1) % 4;
+            CLASS_SIZES[i] = (1 << shift) + ((sub + 1) << (shift - 2));
+        }
+    }
+
+    private final SizeClass[] sizeClasses = new SizeClass[NUM_SIZE_CLASSES];
+    private volatile Slab[] slabs = new Slab[16];
+    private final ArrayDeque<Integer> freeSlabIds = new ArrayDeque<>();
+    private int nextSlabId = 1;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final SlabSource source;
+
+    OffHeapAllocator() {
+        this(SlabSource.DIRECT);
+    }
+
+    OffHeapAllocator(SlabSource source) {
+        this.source = source;
+        for (int i = 0; i < NUM_SIZE_CLASSES; i++) {
+            sizeClasses[i] = new SizeClass(CLASS_SIZES[i]);
+        }
+    }
+
+    /**
+     * slab内存的来源，调用方已持有分配器的锁
+     */
+    interface SlabSource {
+        SlabSource DIRECT = new SlabSource() {
+            @Override
+            public ByteBuffer allocate(int id, int capacity) {
+                return ByteBuffer.allocateDirect(capacity);
+            }
+
+            @Override
+            public void release(int id, ByteBuffer buffer) {
+            }
+        };
+
+        ByteBuffer allocate(int id, int capacity);
+
+        void release(int id, ByteBuffer buffer);
+    }
+
+    /**
+     * 一块直接内存，按固定块大小切分；blockSize为0表示独占的大块slab
+     */
+    static final class Slab {
+        final int id;
+        final ByteBuffer buffer;
+        final int blockSize;
+        int top;
+        int freeHead = NO_BLOCK;
+        int liveBlocks;
+
+        Slab(int id, ByteBuffer buffer, int blockSize) {
+            this.id = id;
+            this.buffer = buffer;
+            this.blockSize = blockSize;
+        }
+
+        boolean hasRoom() {
+            return freeHead != NO_BLOCK || top + blockSize <= buffer.capacity();
+        }
+    }
+
+    /**
+     * 同一级别的slab集合，available中保存仍有空闲块的slab
+     */
+    static final class SizeClass {
+        final int blockSize;
+        final ArrayDeque<Slab> available = new ArrayDeque<>();
+
+        SizeClass(int blockSize) {
+            this.blockSize = blockSize;
+        }
+    }
+
+    static int sizeClassIndex(int size) {
+        if (size <= MIN_BLOCK_SIZE) {
+            return 0;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int sub = (size - 1 - (1 << shift)) >>> (shift - 2);
+        return (shift - 4) * 4 + sub + 1;
+    }
+
+    static int slabId(long address) {
+        return (int) (address >>> 32);
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    static long address(int slabId, int offset) {
+        return ((long) slabId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 分配至少size字节的块
+     */
+    long allocate(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size: " + size);
+        }
+        if (size > SLAB_SIZE) {
+            Slab slab = newSlab(size, 0);
+            slab.liveBlocks = 1;
+            usedBytes.addAndGet(size);
+            return address(slab.id, 0);
+        }
+        SizeClass sc = sizeClasses[sizeClassIndex(size)];
+        int offset;
+        Slab slab;
+        synchronized (sc) {
+            if ((slab = sc.available.peekFirst()) == null) {
+                slab = newSlab(SLAB_SIZE, sc.blockSize);
+                sc.available.addFirst(slab);
+            }
+            if ((offset = slab.freeHead) != NO_BLOCK) {
+                slab.freeHead = slab.buffer.getInt(offset);
+            } else {
+                offset = slab.top;
+                slab.top += sc.blockSize;
+            }
+            slab.liveBlocks++;
+            if (!slab.hasRoom()) {
+                sc.available.pollFirst();
+            }
+        }
+        usedBytes.addAndGet(sc.blockSize);
+        return address(slab.id, offset);
+    }
+
+    /**
+     * 释放块，块回到所属slab的空闲链表
+     */
+    void free(long address) {
+        if (address == 0) {
+            return;
+        }
+        Slab slab = slab(address);
+        if (slab.blockSize == 0) {
+            usedBytes.addAndGet(-slab.buffer.capacity());
+            releaseSlab(slab);
+            return;
+        }
+        SizeClass sc = sizeClasses[sizeClassIndex(slab.blockSize)];
+        int offset = offset(address);
+        synchronized (sc) {
+            boolean wasFull = !slab.hasRoom();
+            slab.buffer.putInt(offset, slab.freeHead);
+            slab.freeHead = offset;
+            slab.liveBlocks--;
+            if (wasFull) {
+                sc.available.addLast(slab);
+            }
+        }
+        usedBytes.addAndGet(-slab.blockSize);
+    }
+
+    /**
+     * 返回地址所在slab的缓冲区，调用方只能使用绝对位置读写
+     */
+    ByteBuffer buffer(long address) {
+        return slab(address).buffer;
+    }
+
+    Slab slab(long address) {
+        return slabs[slabId(address)];
+    }
+
+    /**
+     * 从系统申请的直接内存总量
+     */
+    long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * 已分配出去的块所占字节数
+     */
+    long usedBytes() {
+        return usedBytes.get();
+    }
+
+    private synchronized Slab newSlab(int capacity, int blockSize) {
+        Integer reused = freeSlabIds.pollFirst();
+        int id = reused != null ? reused : nextSlabId++;
+        Slab[] tab = slabs;
+        if (id >= tab.length) {
+            Slab[] grown = new Slab[tab.length << 1];
+            System.arraycopy(tab, 0, grown, 0, tab.length);
+            tab = grown;
+        }
+        Slab slab = new Slab(id, source.allocate(id, capacity), blockSize);
+        tab[id] = slab;
+        slabs = tab;
+        allocatedBytes.addAndGet(capacity);
+        return slab;
+    }
+
+    private synchronized void releaseSlab(Slab slab) {
+        slabs[slab.id] = null;
+        freeSlabIds.addLast(slab.id);
+        allocatedBytes.addAndGet(-slab.buffer.capacity());
+        source.release(slab.id, slab.buffer);
+    }
+
+    /**
+     * 遍历所有slab，用于持久化slab的状态，调用时不能有并发的分配与释放
+     */
+    synchronized void forEachSlab(Consumer<Slab> action) {
+        for (Slab slab : slabs) {
+            if (slab != null) {
+                action.accept(slab);
+            }
+        }
+    }
+
+    /**
+     * 从持久化的状态恢复一个slab，全部恢复完后调用restoreFinished
+     */
+    synchronized void restoreSlab(int id, ByteBuffer buffer, int blockSize, int top, int freeHead, int liveBlocks) {
+        Slab[] tab = slabs;
+        if (id >= tab.length) {
+            Slab[] grown = new Slab[Math.max(tab.length << 1, Integer.highestOneBit(id) << 1)];
+            System.arraycopy(tab, 0, grown, 0, tab.length);
+            tab = grown;
+        }
+        Slab slab = new Slab(id, buffer, blockSize);
+        slab.top = top;
+        slab.freeHead = freeHead;
+        slab.liveBlocks = liveBlocks;
+        tab[id] = slab;
+        slabs = tab;
+        nextSlabId = Math.max(nextSlabId, id + 1);
+        allocatedBytes.addAndGet(buffer.capacity());
+        if (blockSize == 0) {
+            usedBytes.addAndGet(buffer.capacity());
+        } else {
+            usedBytes.addAndGet((long) liveBlocks * blockSize);
+            if (slab.hasRoom()) {
+                sizeClasses[sizeClassIndex(blockSize)].available.addLast(slab);
+            }
+        }
+    }
+
+    /**
+     * 恢复结束后回收中间空缺的slab编号
+     */
+    synchronized void restoreFinished() {
+        Slab[] tab = slabs;
+        for (int id = 1; id < nextSlabId; id++) {
+            if (tab[id] == null) {
+                freeSlabIds.addLast(id);
+            }
+        }
+    }
+}
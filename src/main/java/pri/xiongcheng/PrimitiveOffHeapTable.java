@@ -0,0 +1,242 @@
+package pri.xiongcheng;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+import static pri.xiongcheng.GroupMatcher.DELETED;
+import static pri.xiongcheng.GroupMatcher.EMPTY;
+import static pri.xiongcheng.GroupMatcher.GROUP_SIZE;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 定长整数键的开放寻址表，布局与SwissOffHeapHashMap相同：堆外控制字节数组加定宽槽位数组，
+ * 槽位的前4或8个字节为键，其余部分由子类使用。键的哈希为CityHashUtils.mix64，不编码不装箱
+ * <p>
+ * 写操作持写锁；控制字节与槽位放在同一个Table对象里一次发布，读线程可以先乐观读再校验
+ */
+abstract class PrimitiveOffHeapTable {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final GroupMatcher MATCHER = GroupMatcher.INSTANCE;
+
+    final StampedLock lock = new StampedLock();
+    final int slotSize;
+    private final boolean intKeys;
+    private final int maximumCapacity;
+    volatile Table table;
+    int size;
+    /**
+     * 不触发扩容还能占用的EMPTY槽位数
+     */
+    private int growthLeft;
+
+    /**
+     * 一代表的控制字节与槽位
+     */
+    static final class Table {
+        final ByteBuffer ctrl;
+        final ByteBuffer slots;
+        final int capacity;
+
+        Table(int capacity, int slotSize) {
+            ByteBuffer c = ByteBuffer.allocateDirect(capacity);
+            for (int i = 0; i < capacity; i++) {
+                c.put(i, EMPTY);
+            }
+            this.ctrl = c;
+            this.slots = ByteBuffer.allocateDirect(capacity * slotSize);
+            this.capacity = capacity;
+        }
+    }
+
+    PrimitiveOffHeapTable(int capacity, int keySize, int slotSize) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Illegal initial capacity: " + capacity);
+        }
+        this.intKeys = keySize == Integer.BYTES;
+        this.slotSize = slotSize;
+        this.maximumCapacity = Integer.highestOneBit(Integer.MAX_VALUE / slotSize);
+        newTable(capacityFor(capacity == 0 ? DEFAULT_CAPACITY : capacity));
+    }
+
+    private int capacityFor(int expected) {
+        long c = Math.max(GROUP_SIZE, (long) expected * 8 / 7 + 1);
+        return c >= maximumCapacity ? maximumCapacity : ConcurrentOffHeapHashMap.tableSizeFor((int) c);
+    }
+
+    private void newTable(int capacity) {
+        table = new Table(capacity, slotSize);
+        growthLeft = capacity - capacity / 8;
+    }
+
+    static long hash(long key) {
+        return CityHashUtils.mix64(key);
+    }
+
+    final long keyAt(ByteBuffer slots, int slot) {
+        return intKeys ? slots.getInt(slot * slotSize) : slots.getLong(slot * slotSize);
+    }
+
+    /**
+     * 查找键所在的槽位，不存在返回-1。只读取t，可在乐观读中调用
+     */
+    final int find(Table t, long key, long hash) {
+        ByteBuffer ctrl = t.ctrl, slots = t.slots;
+        int mask = t.capacity / GROUP_SIZE - 1;
+        byte h2 = (byte) (hash & 0x7F);
+        int g = (int) (hash >>> 7) & mask;
+        for (int step = 1; step <= mask + 1; step++) {
+            int base = g * GROUP_SIZE;
+            for (int m = MATCHER.match(ctrl, base, h2); m != 0; m &= m - 1) {
+                int slot = base + Integer.numberOfTrailingZeros(m);
+                if (ctrl.get(slot) == h2 && keyAt(slots, slot) == key) {
+                    return slot;
+                }
+            }
+            if (MATCHER.matchEmpty(ctrl, base) != 0) {
+                return -1;
+            }
+            g = (g + step) & mask;
+        }
+        return -1;
+    }
+
+    private static int findInsertSlot(Table t, long hash) {
+        int mask = t.capacity / GROUP_SIZE - 1;
+        int g = (int) (hash >>> 7) & mask;
+        for (int step = 1; ; step++) {
+            int base = g * GROUP_SIZE;
+            int m = MATCHER.matchEmptyOrDeleted(t.ctrl, base);
+            if (m != 0) {
+                return base + Integer.numberOfTrailingZeros(m);
+            }
+            g = (g + step) & mask;
+        }
+    }
+
+    /**
+     * 返回键所在的槽位；不存在时占用一个新槽位并写入键，返回~slot。调用方需持有写锁，
+     * 新槽位的控制字节在写完键之后才设置，调用方写入值后再调用publish
+     */
+    final int findOrInsert(long key, long hash) {
+        Table t = table;
+        int slot = find(t, key, hash);
+        if (slot >= 0) {
+            return slot;
+        }
+        slot = findInsertSlot(t, hash);
+        if (growthLeft == 0 && t.ctrl.get(slot) == EMPTY) {
+            rehash();
+            slot = findInsertSlot(t = table, hash);
+        }
+        if (t.ctrl.get(slot) == EMPTY) {
+            growthLeft--;
+        }
+        if (intKeys) {
+            t.slots.putInt(slot * slotSize, (int) key);
+        } else {
+            t.slots.putLong(slot * slotSize, key);
+        }
+        size++;
+        return ~slot;
+    }
+
+    final void publish(int slot, long hash) {
+        table.ctrl.put(slot, (byte) (hash & 0x7F));
+    }
+
+    /**
+     * 删除槽位，组内还有EMPTY时直接置为EMPTY，否则留下DELETED
+     */
+    final void erase(int slot) {
+        ByteBuffer ctrl = table.ctrl;
+        if (MATCHER.matchEmpty(ctrl, slot & -GROUP_SIZE) != 0) {
+            ctrl.put(slot, EMPTY);
+            growthLeft++;
+        } else {
+            ctrl.put(slot, DELETED);
+        }
+        size--;
+    }
+
+    /**
+     * 墓碑较多时按原大小重建，否则扩容一倍。槽位整体复制，不再读取键之外的内容
+     */
+    private void rehash() {
+        Table old = table;
+        int oldCapacity = old.capacity;
+        int n = size < (oldCapacity - oldCapacity / 8) / 2 ? oldCapacity : oldCapacity << 1;
+        if (n > maximumCapacity) {
+            throw new IllegalStateException("table is full: " + size);
+        }
+        Table t = new Table(n, slotSize);
+        int left = n - n / 8;
+        for (int i = 0; i < oldCapacity; i++) {
+            if (old.ctrl.get(i) >= 0) {
+                long hash = hash(keyAt(old.slots, i));
+                int slot = findInsertSlot(t, hash);
+                t.slots.put(slot * slotSize, old.slots, i * slotSize, slotSize);
+                t.ctrl.put(slot, (byte) (hash & 0x7F));
+                left--;
+            }
+        }
+        growthLeft = left;
+        table = t;
+    }
+
+    /**
+     * 遍历所有占用的槽位，调用方需持有锁
+     */
+    final void forEachSlot(SlotVisitor visitor) {
+        Table t = table;
+        for (int i = 0; i < t.capacity; i++) {
+            if (t.ctrl.get(i) >= 0) {
+                visitor.visit(t.slots, i);
+            }
+        }
+    }
+
+    interface SlotVisitor {
+        void visit(ByteBuffer slots, int slot);
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            releaseAll();
+            newTable(capacityFor(DEFAULT_CAPACITY));
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 清空前释放槽位引用的堆外块，值内联在槽位中的子类无需处理
+     */
+    void releaseAll() {
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int n = size;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                n = size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return n;
+    }
+
+    public long mappingCount() {
+        return size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
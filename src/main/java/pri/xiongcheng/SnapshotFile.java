@@ -0,0 +1,172 @@
+package pri.xiongcheng;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 快照文件格式：512字节文件头(魔数、版本、条目数、表长度、编解码器类名)，之后是若干批次，以条目数为0的批次结束。
+ * 每批先写条目数与每条的(哈希8字节, 键长度4字节, 值长度4字节)，再依次写各条的键字节和值字节。
+ * <p>
+ * 写出时用一次聚集写(gather write)把批次头与各个堆外键值切片写出；读入时先读批次头，
+ * 分配好键值块后用一次分散读(scattering read)直接读进堆外块
+ */
+final class SnapshotFile {
+
+    static final int HEADER_SIZE = 512;
+    static final int BATCH_RECORDS = 512;
+    private static final int MAGIC = 0x4F48534E;
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 16;
+    private static final int BATCH_BYTES = 4 << 20;
+    private static final int COUNT_OFFSET = 8;
+    private static final int TABLE_LENGTH_OFFSET = 16;
+    private static final int CODECS_OFFSET = 32;
+
+    private SnapshotFile() {
+    }
+
+    static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer batch = ByteBuffer.allocateDirect(Integer.BYTES + BATCH_RECORDS * RECORD_SIZE);
+        private final ByteBuffer[] srcs = new ByteBuffer[1 + 2 * BATCH_RECORDS];
+        private int records;
+        private long bytes;
+        private long count;
+
+        Writer(FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(HEADER_SIZE);
+            batch.position(Integer.BYTES);
+        }
+
+        /**
+         * 加入一条，key与value的[position, limit)为要写出的字节，缓冲区在本批写出前不能改动
+         */
+        void add(long hash, ByteBuffer key, ByteBuffer value) throws IOException {
+            batch.putLong(hash).putInt(key.remaining()).putInt(value.remaining());
+            srcs[1 + 2 * records] = key;
+            srcs[2 + 2 * records] = value;
+            bytes += key.remaining() + value.remaining();
+            count++;
+            if (++records == BATCH_RECORDS || bytes >= BATCH_BYTES) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            batch.putInt(0, records).flip();
+            srcs[0] = batch;
+            writeFully(srcs, 1 + 2 * records);
+            batch.clear().position(Integer.BYTES);
+            records = 0;
+            bytes = 0;
+        }
+
+        private void writeFully(ByteBuffer[] buffers, int length) throws IOException {
+            for (int offset = 0; offset < length; ) {
+                channel.write(buffers, offset, length - offset);
+                while (offset < length && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+        }
+
+        /**
+         * 写出最后一批与结束标记，再写文件头，返回条目数
+         */
+        long finish(int tableLength, Codec<?> keyCodec, Codec<?> valueCodec) throws IOException {
+            if (records > 0) {
+                flush();
+            }
+            flush();
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            h.putInt(0, MAGIC).putInt(Integer.BYTES, VERSION);
+            h.putLong(COUNT_OFFSET, count).putInt(TABLE_LENGTH_OFFSET, tableLength);
+            MappedFileStorage.writeCodecs(h, CODECS_OFFSET, keyCodec, valueCodec);
+            while (h.hasRemaining()) {
+                channel.write(h, h.position());
+            }
+            channel.force(false);
+            return count;
+        }
+    }
+
+    static final class Reader {
+        private final Path path;
+        private final FileChannel channel;
+        private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_RECORDS * RECORD_SIZE);
+        private final long count;
+
+        Reader(Path path, FileChannel channel, Codec<?> keyCodec, Codec<?> valueCodec) throws IOException {
+            this.path = path;
+            this.channel = channel;
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(h);
+            if (h.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not a snapshot file");
+            }
+            if (h.getInt(Integer.BYTES) != VERSION) {
+                throw new IOException(path + " has unsupported snapshot version " + h.getInt(Integer.BYTES));
+            }
+            MappedFileStorage.checkCodecs(path, h, CODECS_OFFSET, keyCodec, valueCodec);
+            this.count = h.getLong(COUNT_OFFSET);
+        }
+
+        long count() {
+            return count;
+        }
+
+        /**
+         * 读入下一批的条目头，返回条目数，0表示结束
+         */
+        int nextBatch() throws IOException {
+            ByteBuffer n = ByteBuffer.allocate(Integer.BYTES);
+            readFully(n);
+            int records = n.getInt(0);
+            if (records < 0 || records > BATCH_RECORDS) {
+                throw new IOException(path + " is corrupt: batch of " + records);
+            }
+            batch.clear().limit(records * RECORD_SIZE);
+            readFully(batch);
+            return records;
+        }
+
+        long hash(int i) {
+            return batch.getLong(i * RECORD_SIZE);
+        }
+
+        int keyLength(int i) {
+            return batch.getInt(i * RECORD_SIZE + 8);
+        }
+
+        int valueLength(int i) {
+            return batch.getInt(i * RECORD_SIZE + 12);
+        }
+
+        /**
+         * 把本批的键值字节分散读入dsts[0, length)
+         */
+        void read(ByteBuffer[] dsts, int length) throws IOException {
+            for (int offset = 0; offset < length; ) {
+                if (channel.read(dsts, offset, length - offset) < 0) {
+                    throw new IOException(path + " is truncated");
+                }
+                while (offset < length && !dsts[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+        }
+
+        private void readFully(ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) < 0) {
+                    throw new IOException(path + " is truncated");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package pri.xiongcheng;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+import static pri.xiongcheng.GroupMatcher.DELETED;
+import static pri.xiongcheng.GroupMatcher.EMPTY;
+import static pri.xiongcheng.GroupMatcher.GROUP_SIZE;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * SwissTable式开放寻址的堆外map，与ConcurrentOffHeapHashMap使用相同的编解码器和哈希
+ * <p>
+ * 控制字节数组与槽位数组都在堆外，每个槽位一个控制字节：EMPTY、DELETED或哈希低7位(h2)。
+ * 槽位16个一组，哈希的其余位(h1)选择起始组，按三角数序列探测后续组，组内用GroupMatcher一次比较16个控制字节。
+ * 槽位只保存键块与值块的地址，键块前4个字节为键长度，值块格式与ConcurrentOffHeapHashMap相同。
+ * <p>
+ * 读操作共享读锁，写操作持写锁；装载因子固定为7/8
+ */
+public class SwissOffHeapHashMap<K, V> extends AbstractMap<K, V> implements Serializable {
+
+    private static final int DEFAULT_CAPACITY = 16;
+    /**
+     * 槽位数组按int寻址，单个缓冲区最多2^27个槽位
+     */
+    private static final int MAXIMUM_CAPACITY = 1 << 27;
+    private static final int SLOT_SIZE = 16;
+    private static final int KEY_HEADER = 4;
+    private static final int VALUE_HEADER = ConcurrentOffHeapHashMap.VALUE_HEADER;
+    private static final GroupMatcher MATCHER = GroupMatcher.INSTANCE;
+
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int initialCapacity;
+    private transient OffHeapAllocator allocator;
+    private transient StampedLock lock;
+    private transient ByteBuffer ctrl;
+    private transient ByteBuffer slots;
+    private transient int capacity;
+    private transient int size;
+    /**
+     * 不触发扩容还能占用的EMPTY槽位数，DELETED槽位不计入
+     */
+    private transient int growthLeft;
+
+    public SwissOffHeapHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SwissOffHeapHashMap(int capacity) {
+        this(capacity, Codecs.serialization(), Codecs.serialization());
+    }
+
+    public SwissOffHeapHashMap(Codec<K> keyCodec, Codec<V> valueCodec) {
+        this(DEFAULT_CAPACITY, keyCodec, valueCodec);
+    }
+
+    public SwissOffHeapHashMap(int capacity, Codec<K> keyCodec, Codec<V> valueCodec) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Illegal initial capacity: " + capacity);
+        }
+        this.initialCapacity = capacity;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        init(capacity);
+    }
+
+    private void init(int expected) {
+        allocator = new OffHeapAllocator();
+        lock = new StampedLock();
+        allocateTable(capacityFor(expected));
+    }
+
+    /**
+     * 能容纳expected个元素的槽位数，至少一组
+     */
+    private static int capacityFor(int expected) {
+        long c = Math.max(GROUP_SIZE, (long) expected * 8 / 7 + 1);
+        if (c >= MAXIMUM_CAPACITY) {
+            return MAXIMUM_CAPACITY;
+        }
+        return ConcurrentOffHeapHashMap.tableSizeFor((int) c);
+    }
+
+    private void allocateTable(int n) {
+        ByteBuffer c = ByteBuffer.allocateDirect(n);
+        for (int i = 0; i < n; i++) {
+            c.put(i, EMPTY);
+        }
+        ctrl = c;
+        slots = ByteBuffer.allocateDirect(n * SLOT_SIZE);
+        capacity = n;
+        growthLeft = n - n / 8;
+    }
+
+    private static byte h2(long hash) {
+        return (byte) (hash & 0x7F);
+    }
+
+    private static int h1(long hash) {
+        return (int) (hash >>> 7);
+    }
+
+    final ByteBuffer encodeKey(Object key) {
+        @SuppressWarnings("unchecked")
+        K k = (K) key;
+        int length = keyCodec.encodedSize(k);
+        ByteBuffer buf = ConcurrentOffHeapHashMap.scratch(length);
+        keyCodec.encode(k, buf, 0);
+        buf.limit(length);
+        return buf;
+    }
+
+    private long keyAddress(int slot) {
+        return slots.getLong(slot * SLOT_SIZE);
+    }
+
+    private long valueAddress(int slot) {
+        return slots.getLong(slot * SLOT_SIZE + Long.BYTES);
+    }
+
+    private boolean keyEquals(int slot, ByteBuffer k) {
+        long address = keyAddress(slot);
+        ByteBuffer buf = allocator.buffer(address);
+        int offset = OffHeapAllocator.offset(address);
+        return ByteBufferUtils.equals(buf, offset + KEY_HEADER, buf.getInt(offset), k, 0, k.limit());
+    }
+
+    /**
+     * 按哈希探测键所在的槽位，不存在返回-1
+     */
+    private int find(long hash, ByteBuffer k) {
+        ByteBuffer c = ctrl;
+        int mask = (capacity / GROUP_SIZE) - 1;
+        byte h2 = h2(hash);
+        int g = h1(hash) & mask;
+        for (int step = 1; step <= mask + 1; step++) {
+            int base = g * GROUP_SIZE;
+            for (int m = MATCHER.match(c, base, h2); m != 0; m &= m - 1) {
+                int slot = base + Integer.numberOfTrailingZeros(m);
+                if (c.get(slot) == h2 && keyEquals(slot, k)) {
+                    return slot;
+                }
+            }
+            if (MATCHER.matchEmpty(c, base) != 0) {
+                return -1;
+            }
+            g = (g + step) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 探测序列上第一个EMPTY或DELETED的槽位
+     */
+    private int findInsertSlot(long hash) {
+        ByteBuffer c = ctrl;
+        int mask = (capacity / GROUP_SIZE) - 1;
+        int g = h1(hash) & mask;
+        for (int step = 1; ; step++) {
+            int base = g * GROUP_SIZE;
+            int m = MATCHER.matchEmptyOrDeleted(c, base);
+            if (m != 0) {
+                return base + Integer.numberOfTrailingZeros(m);
+            }
+            g = (g + step) & mask;
+        }
+    }
+
+    private void setSlot(int slot, byte h2, long keyAddress, long valueAddress) {
+        slots.putLong(slot * SLOT_SIZE, keyAddress);
+        slots.putLong(slot * SLOT_SIZE + Long.BYTES, valueAddress);
+        ctrl.put(slot, h2);
+    }
+
+    private V decodeValue(long address) {
+        ByteBuffer buf = allocator.buffer(address);
+        int offset = OffHeapAllocator.offset(address);
+        return valueCodec.decode(buf, offset + VALUE_HEADER, buf.getInt(offset));
+    }
+
+    private K decodeKey(long address) {
+        ByteBuffer buf = allocator.buffer(address);
+        int offset = OffHeapAllocator.offset(address);
+        return keyCodec.decode(buf, offset + KEY_HEADER, buf.getInt(offset));
+    }
+
+    private long storeKey(ByteBuffer k) {
+        int length = k.limit();
+        long address = allocator.allocate(KEY_HEADER + length);
+        ByteBuffer buf = allocator.buffer(address);
+        int offset = OffHeapAllocator.offset(address);
+        buf.putInt(offset, length);
+        buf.put(offset + KEY_HEADER, k, 0, length);
+        return address;
+    }
+
+    private long storeValue(V value) {
+        int length = valueCodec.encodedSize(value);
+        long address = allocator.allocate(VALUE_HEADER + length);
+        ByteBuffer buf = allocator.buffer(address);
+        int offset = OffHeapAllocator.offset(address);
+        buf.putInt(offset, length);
+        valueCodec.encode(value, buf, offset + VALUE_HEADER);
+        return address;
+    }
+
+    @Override
+    public V get(Object key) {
+        ByteBuffer k = encodeKey(key);
+        long hash = ConcurrentOffHeapHashMap.hash(k);
+        long stamp = lock.readLock();
+        try {
+            int slot = find(hash, k);
+            return slot < 0 ? null : decodeValue(valueAddress(slot));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        ByteBuffer k = encodeKey(key);
+        long hash = ConcurrentOffHeapHashMap.hash(k);
+        long stamp = lock.readLock();
+        try {
+            return find(hash, k) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        ByteBuffer k = encodeKey(key);
+        long hash = ConcurrentOffHeapHashMap.hash(k);
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(hash, k);
+            if (slot >= 0) {
+                long old = valueAddress(slot);
+                V oldValue = decodeValue(old);
+                slots.putLong(slot * SLOT_SIZE + Long.BYTES, storeValue(value));
+                allocator.free(old);
+                return oldValue;
+            }
+            slot = findInsertSlot(hash);
+            if (growthLeft == 0 && ctrl.get(slot) == EMPTY) {
+                rehash();
+                slot = findInsertSlot(hash);
+            }
+            if (ctrl.get(slot) == EMPTY) {
+                growthLeft--;
+            }
+            setSlot(slot, h2(hash), storeKey(k), storeValue(value));
+            size++;
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        ByteBuffer k = encodeKey(key);
+        long hash = ConcurrentOffHeapHashMap.hash(k);
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(hash, k);
+            if (slot < 0) {
+                return null;
+            }
+            long valueAddress = valueAddress(slot);
+            V oldValue = decodeValue(valueAddress);
+            allocator.free(keyAddress(slot));
+            allocator.free(valueAddress);
+            eraseSlot(slot);
+            size--;
+            return oldValue;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 组内还有EMPTY时，没有探测会越过这一组，槽位可以直接置为EMPTY；否则留下DELETED
+     */
+    private void eraseSlot(int slot) {
+        int base = slot & -GROUP_SIZE;
+        if (MATCHER.matchEmpty(ctrl, base) != 0) {
+            ctrl.put(slot, EMPTY);
+            growthLeft++;
+        } else {
+            ctrl.put(slot, DELETED);
+        }
+    }
+
+    /**
+     * DELETED较多时按原大小重建以清除墓碑，否则扩容一倍。键块与值块不移动，只重新计算哈希
+     */
+    private void rehash() {
+        int oldCapacity = capacity;
+        int n = size < (oldCapacity - oldCapacity / 8) / 2 ? oldCapacity : oldCapacity << 1;
+        if (n > MAXIMUM_CAPACITY || (n == MAXIMUM_CAPACITY && size >= n - n / 8)) {
+            throw new IllegalStateException("SwissOffHeapHashMap is full: " + size);
+        }
+        ByteBuffer oldCtrl = ctrl, oldSlots = slots;
+        allocateTable(n);
+        for (int i = 0; i < oldCapacity; i++) {
+            if (oldCtrl.get(i) >= 0) {
+                long keyAddress = oldSlots.getLong(i * SLOT_SIZE);
+                long valueAddress = oldSlots.getLong(i * SLOT_SIZE + Long.BYTES);
+                ByteBuffer buf = allocator.buffer(keyAddress);
+                int offset = OffHeapAllocator.offset(keyAddress);
+                long hash = ConcurrentOffHeapHashMap.hash(buf, offset + KEY_HEADER, buf.getInt(offset));
+                setSlot(findInsertSlot(hash), h2(hash), keyAddress, valueAddress);
+                growthLeft--;
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < capacity; i++) {
+                if (ctrl.get(i) >= 0) {
+                    allocator.free(keyAddress(i));
+                    allocator.free(valueAddress(i));
+                    ctrl.put(i, EMPTY);
+                }
+            }
+            size = 0;
+            growthLeft = capacity - capacity / 8;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int n = size;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                n = size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return n;
+    }
+
+    public long mappingCount() {
+        return size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * 返回调用时的快照，迭代器的remove作用于map
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                Iterator<Entry<K, V>> it = snapshot().iterator();
+                return new Iterator<>() {
+                    Entry<K, V> last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        return last = it.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null) {
+                            throw new IllegalStateException();
+                        }
+                        SwissOffHeapHashMap.this.remove(last.getKey());
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return SwissOffHeapHashMap.this.size();
+            }
+        };
+    }
+
+    private List<Entry<K, V>> snapshot() {
+        long stamp = lock.readLock();
+        try {
+            List<Entry<K, V>> entries = new ArrayList<>(size);
+            for (int i = 0; i < capacity; i++) {
+                if (ctrl.get(i) >= 0) {
+                    entries.add(new SimpleImmutableEntry<>(decodeKey(keyAddress(i)), decodeValue(valueAddress(i))));
+                }
+            }
+            return entries;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream s) throws IOException {
+        s.defaultWriteObject();
+        for (Entry<K, V> e : snapshot()) {
+            s.writeObject(e.getKey());
+            s.writeObject(e.getValue());
+        }
+        s.writeObject(null);
+        s.writeObject(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream s) throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        init(initialCapacity);
+        for (; ; ) {
+            K key = (K) s.readObject();
+            V value = (V) s.readObject();
+            if (key == null) {
+                break;
+            }
+            put(key, value);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package pri.xiongcheng;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 写前日志的落盘策略
+ */
+public enum SyncPolicy {
+    /**
+     * 写操作返回前等待自己的记录force到磁盘，多个写线程共用一次force(组提交)
+     */
+    ALWAYS,
+    /**
+     * 后台线程按固定间隔写出并force，崩溃时最多丢失一个间隔内的写操作
+     */
+    INTERVAL,
+    /**
+     * 后台线程按固定间隔写出，不调用force，由操作系统决定何时落盘
+     */
+    NONE
+}
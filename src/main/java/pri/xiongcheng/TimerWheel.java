@@ -0,0 +1,97 @@
+package pri.xiongcheng;
+
+import java.util.function.Consumer;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 分层时间轮，5层每层64个桶，第i层一格为2^(20+6i)纳秒：约1毫秒、67毫秒、4.3秒、4.6分钟、4.9小时，
+ * 最高层一圈约13天，更远的定时器放在最高层最远的一格，到时再重新安排。
+ * 时间按System.nanoTime()计，用算术右移取格数，时间值跨过0时格数仍然单调
+ * <p>
+ * 推进时依次处理每层新走过的格：到期的交给回调，未到期的按剩余时间放回更低的层。
+ * 重新安排的格总在当前格之后，同一次推进中不会被再次处理。不是线程安全的，由调用方串行使用
+ */
+final class TimerWheel<T> {
+
+    private static final int BUCKETS = 64;
+    private static final int LEVELS = 5;
+    private static final int TICK_SHIFT = 20;
+    private static final int LEVEL_SHIFT = 6;
+
+    static final class Timer<T> {
+        final T item;
+        final long deadline;
+        Timer<T> next;
+
+        Timer(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Timer<T>[][] wheel;
+    private long nanos;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(long nanos) {
+        this.wheel = (Timer<T>[][]) new Timer<?>[LEVELS][BUCKETS];
+        this.nanos = nanos;
+    }
+
+    private static int shift(int level) {
+        return TICK_SHIFT + LEVEL_SHIFT * level;
+    }
+
+    void schedule(T item, long deadline) {
+        schedule(new Timer<>(item, deadline));
+    }
+
+    private void schedule(Timer<T> timer) {
+        long delay = timer.deadline - nanos;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << shift(level + 1)) {
+            level++;
+        }
+        int s = shift(level);
+        long now = nanos >> s;
+        long ticks = delay >= (long) BUCKETS << s ? now + BUCKETS : Math.max(timer.deadline >> s, now + 1);
+        Timer<T>[] buckets = wheel[level];
+        int index = (int) ticks & (BUCKETS - 1);
+        timer.next = buckets[index];
+        buckets[index] = timer;
+    }
+
+    /**
+     * 推进到current，把已到期的定时器交给expired
+     */
+    void advance(long current, Consumer<T> expired) {
+        long previous = nanos;
+        if (current - previous <= 0) {
+            return;
+        }
+        nanos = current;
+        for (int level = 0; level < LEVELS; level++) {
+            int s = shift(level);
+            long from = previous >> s, delta = (current >> s) - from;
+            if (delta <= 0) {
+                break;
+            }
+            Timer<T>[] buckets = wheel[level];
+            for (long t = from + 1, end = from + Math.min(delta, BUCKETS); t <= end; t++) {
+                int index = (int) t & (BUCKETS - 1);
+                Timer<T> timer = buckets[index];
+                buckets[index] = null;
+                while (timer != null) {
+                    Timer<T> next = timer.next;
+                    if (timer.deadline - current <= 0) {
+                        expired.accept(timer.item);
+                    } else {
+                        schedule(timer);
+                    }
+                    timer = next;
+                }
+            }
+        }
+    }
+}
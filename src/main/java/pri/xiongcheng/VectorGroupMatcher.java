@@ -0,0 +1,36 @@
+package pri.xiongcheng;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 用128位向量比较一组控制字节，只在jdk.incubator.vector模块可用时由GroupMatcher反射加载
+ */
+final class VectorGroupMatcher extends GroupMatcher {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_128;
+
+    @Override
+    int match(ByteBuffer ctrl, int offset, byte h2) {
+        return (int) load(ctrl, offset).eq(h2).toLong();
+    }
+
+    @Override
+    int matchEmpty(ByteBuffer ctrl, int offset) {
+        return (int) load(ctrl, offset).eq(EMPTY).toLong();
+    }
+
+    @Override
+    int matchEmptyOrDeleted(ByteBuffer ctrl, int offset) {
+        return (int) load(ctrl, offset).lt((byte) 0).toLong();
+    }
+
+    private static ByteVector load(ByteBuffer ctrl, int offset) {
+        return ByteVector.fromByteBuffer(SPECIES, ctrl, offset, ByteOrder.LITTLE_ENDIAN);
+    }
+}
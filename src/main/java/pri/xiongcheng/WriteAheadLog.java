@@ -0,0 +1,499 @@
+package pri.xiongcheng;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * @author xiongcheng
+ * <p>
+ * 写前日志。目录下的段文件wal-序号.log每段约64MB，512字节段头(魔数、版本、段序号、编解码器类名)之后是记录：
+ * 长度4字节(CRC之后的字节数)、CRC32C 4字节、类型1字节、哈希8字节、键长度4字节、值长度4字节、键字节、值字节。
+ * 日志位置是从第一段起累计的记录字节数
+ * <p>
+ * 写线程在桶锁内把记录追加到内存缓冲区，得到记录末尾的日志位置，出桶锁后再按SyncPolicy提交。
+ * 组提交：同一时刻只有一个线程写文件并force，它一次带走缓冲区中所有已追加的记录，
+ * 排在后面的线程拿到锁时发现自己的位置已经落盘，直接返回
+ * <p>
+ * snapshot-序号.snap是快照，包含该序号之前所有段的内容。已封存的段累计超过阈值后，
+ * 后台线程切换到新段并写快照，快照改名完成后删除旧段与旧快照。启动时加载最新的快照，
+ * 再按序重放之后的段，最后一段末尾校验不通过的残缺记录被截掉
+ */
+final class WriteAheadLog implements Closeable {
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    private static final int HEADER_SIZE = 512;
+    private static final int MAGIC = 0x4F48574C;
+    private static final int VERSION = 1;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int CODECS_OFFSET = 16;
+    /**
+     * CRC之后的定长部分：类型、哈希、键长度、值长度
+     */
+    private static final int RECORD_FIXED = 17;
+    private static final int RECORD_HEADER = 8 + RECORD_FIXED;
+    private static final int MAX_RECORD = 1 << 30;
+    private static final long SEGMENT_SIZE = 64L << 20;
+    private static final long COMPACT_BYTES = 4 * SEGMENT_SIZE;
+    /**
+     * 非ALWAYS策略下未写出的字节超过该值时由写线程自己写出，避免缓冲区无限增长
+     */
+    private static final int FLUSH_BYTES = 8 << 20;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * 启动时的重放目标，key与value的[0, limit)为记录中的字节，回调返回后缓冲区会被复用
+     */
+    interface Replay {
+        void snapshot(Path file) throws IOException;
+
+        void put(long hash, ByteBuffer key, ByteBuffer value);
+
+        void remove(long hash, ByteBuffer key);
+    }
+
+    interface SnapshotWriter {
+        void write(Path file) throws IOException;
+    }
+
+    private final Path directory;
+    private final SyncPolicy policy;
+    private final Codec<?> keyCodec;
+    private final Codec<?> valueCodec;
+    private final SnapshotWriter snapshots;
+    private final ScheduledExecutorService background;
+    private final Object appendLock = new Object();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    /**
+     * 以下三个字段由appendLock保护
+     */
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer pending = ByteBuffer.allocateDirect(1 << 20);
+    private long appended;
+    private boolean closed;
+    /**
+     * 以下字段由flushLock保护，spare是与pending交换的另一块缓冲区
+     */
+    private ByteBuffer spare = ByteBuffer.allocateDirect(1 << 20);
+    private FileChannel channel;
+    private long sequence;
+    private long segmentBytes;
+    private volatile long sealedBytes;
+    private volatile long written;
+    private volatile long durable;
+    private volatile IOException failure;
+    private volatile Exception backgroundFailure;
+
+    private WriteAheadLog(Path directory, SyncPolicy policy, Codec<?> keyCodec, Codec<?> valueCodec,
+                          SnapshotWriter snapshots) {
+        this.directory = directory;
+        this.policy = policy;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.snapshots = snapshots;
+        this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "wal-" + directory.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 重放目录中已有的快照与段，再打开一个新段开始写
+     */
+    static WriteAheadLog open(Path directory, SyncPolicy policy, long syncIntervalMillis,
+                              Codec<?> keyCodec, Codec<?> valueCodec,
+                              Replay replay, SnapshotWriter snapshots) throws IOException {
+        if (syncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Illegal sync interval: " + syncIntervalMillis);
+        }
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> segments = new TreeMap<>(), snaps = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                long seq;
+                if ((seq = sequenceOf(name, SEGMENT_PREFIX, SEGMENT_SUFFIX)) >= 0) {
+                    segments.put(seq, p);
+                } else if ((seq = sequenceOf(name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) >= 0) {
+                    snaps.put(seq, p);
+                } else if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(TEMP_SUFFIX)) {
+                    Files.delete(p);
+                }
+            }
+        }
+        long base = 0L;
+        if (!snaps.isEmpty()) {
+            base = snaps.lastKey();
+            replay.snapshot(snaps.lastEntry().getValue());
+        }
+        long next = base, sealed = 0L;
+        for (Map.Entry<Long, Path> e : segments.entrySet()) {
+            long seq = e.getKey();
+            if (seq < base) {
+                // 快照已经包含，上次压缩时没来得及删除
+                Files.delete(e.getValue());
+                continue;
+            }
+            sealed += replaySegment(e.getValue(), seq, seq == segments.lastKey(), keyCodec, valueCodec, replay);
+            next = seq + 1;
+        }
+        for (Path p : snaps.headMap(base).values()) {
+            Files.delete(p);
+        }
+        WriteAheadLog log = new WriteAheadLog(directory, policy, keyCodec, valueCodec, snapshots);
+        log.sealedBytes = sealed;
+        log.openSegment(next);
+        log.background.scheduleWithFixedDelay(log::tick, syncIntervalMillis, syncIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        return log;
+    }
+
+    private static long sequenceOf(String name, String prefix, String suffix) {
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private Path segmentPath(long seq) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    private Path snapshotPath(long seq, String suffix) {
+        return directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, seq, suffix));
+    }
+
+    /**
+     * 重放一个段，返回有效部分的字节数。最后一段在第一条不完整或校验失败的记录处截断，其他段出现这种记录说明文件损坏
+     */
+    private static long replaySegment(Path file, long seq, boolean last, Codec<?> keyCodec, Codec<?> valueCodec,
+                                      Replay replay) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            if (size < HEADER_SIZE && last) {
+                // 新段的段头还没写完就崩溃了
+                ch.close();
+                Files.delete(file);
+                return 0L;
+            }
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            while (h.hasRemaining() && ch.read(h) >= 0) {
+            }
+            if (h.hasRemaining() || h.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a write-ahead log segment");
+            }
+            if (h.getInt(Integer.BYTES) != VERSION) {
+                throw new IOException(file + " has unsupported log version " + h.getInt(Integer.BYTES));
+            }
+            if (h.getLong(SEQUENCE_OFFSET) != seq) {
+                throw new IOException(file + " has sequence " + h.getLong(SEQUENCE_OFFSET));
+            }
+            MappedFileStorage.checkCodecs(file, h, CODECS_OFFSET, keyCodec, valueCodec);
+            CRC32C crc = new CRC32C();
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).limit(0);
+            long position = HEADER_SIZE;
+            while (position < size) {
+                if (buf.remaining() < 8 && (buf = fill(ch, buf, 8)).remaining() < 8) {
+                    break;
+                }
+                int p = buf.position();
+                int length = buf.getInt(p);
+                if (length < RECORD_FIXED || length > MAX_RECORD) {
+                    break;
+                }
+                if (buf.remaining() < 8 + length && (buf = fill(ch, buf, 8 + length)).remaining() < 8 + length) {
+                    break;
+                }
+                p = buf.position();
+                crc.reset();
+                crc.update(buf.slice(p + 8, length));
+                if ((int) crc.getValue() != buf.getInt(p + 4)) {
+                    break;
+                }
+                byte type = buf.get(p + 8);
+                long hash = buf.getLong(p + 9);
+                int kl = buf.getInt(p + 17), vl = buf.getInt(p + 21);
+                if (kl < 0 || vl < 0 || (long) RECORD_FIXED + kl + vl != length) {
+                    break;
+                }
+                ByteBuffer key = buf.slice(p + RECORD_HEADER, kl);
+                if (type == PUT) {
+                    replay.put(hash, key, buf.slice(p + RECORD_HEADER + kl, vl));
+                } else if (type == REMOVE) {
+                    replay.remove(hash, key);
+                } else {
+                    break;
+                }
+                buf.position(p + 8 + length);
+                position += 8 + length;
+            }
+            if (position < size) {
+                if (!last) {
+                    throw new IOException(file + " is corrupt at " + position);
+                }
+                ch.truncate(position);
+                ch.force(false);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * 保留未读完的字节并继续读，直到至少有need个字节或到达文件末尾
+     */
+    private static ByteBuffer fill(FileChannel ch, ByteBuffer buf, int need) throws IOException {
+        if (buf.capacity() < need) {
+            ByteBuffer b = ByteBuffer.allocateDirect(Math.max(need, buf.capacity() << 1));
+            b.put(buf);
+            buf = b;
+        } else {
+            buf.compact();
+        }
+        while (buf.position() < need && ch.read(buf) >= 0) {
+        }
+        return buf.flip();
+    }
+
+    private void openSegment(long seq) throws IOException {
+        FileChannel ch = FileChannel.open(segmentPath(seq), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+            h.putInt(0, MAGIC).putInt(Integer.BYTES, VERSION).putLong(SEQUENCE_OFFSET, seq);
+            MappedFileStorage.writeCodecs(h, CODECS_OFFSET, keyCodec, valueCodec);
+            while (h.hasRemaining()) {
+                ch.write(h);
+            }
+            ch.force(false);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+        channel = ch;
+        sequence = seq;
+        segmentBytes = HEADER_SIZE;
+    }
+
+    /**
+     * 追加一条记录，返回记录末尾的日志位置。调用方在桶锁内调用，保证同一个键的记录顺序与修改顺序一致
+     */
+    long append(byte type, long hash, ByteBuffer key, int keyOffset, int keyLength,
+                ByteBuffer value, int valueOffset, int valueLength) {
+        int length = RECORD_FIXED + keyLength + valueLength;
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IllegalStateException("write-ahead log is closed");
+            }
+            IOException f = failure;
+            if (f != null) {
+                throw new UncheckedIOException("write-ahead log failed", f);
+            }
+            ByteBuffer b = pending;
+            if (b.remaining() < 8 + length) {
+                pending = b = grow(b, 8 + length);
+            }
+            int p = b.position();
+            b.putInt(p, length).put(p + 8, type).putLong(p + 9, hash).putInt(p + 17, keyLength)
+                    .putInt(p + 21, valueLength).put(p + RECORD_HEADER, key, keyOffset, keyLength);
+            if (valueLength > 0) {
+                b.put(p + RECORD_HEADER + keyLength, value, valueOffset, valueLength);
+            }
+            crc.reset();
+            crc.update(b.slice(p + 8, length));
+            b.putInt(p + 4, (int) crc.getValue());
+            b.position(p + 8 + length);
+            return appended += 8 + length;
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer b, int need) {
+        ByteBuffer n = ByteBuffer.allocateDirect(Math.max(b.capacity() << 1, b.position() + need));
+        n.put(b.flip());
+        return n;
+    }
+
+    /**
+     * 出桶锁后调用。ALWAYS策略等到lsn之前的记录落盘，其他策略只在积压过多时写出
+     */
+    void commit(long lsn) {
+        try {
+            if (policy == SyncPolicy.ALWAYS) {
+                if (durable < lsn) {
+                    flush(true, lsn);
+                }
+            } else if (lsn - written > FLUSH_BYTES) {
+                flush(false, lsn);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flush(boolean force, long lsn) throws IOException {
+        flushLock.lock();
+        try {
+            if (force ? durable >= lsn : written >= lsn) {
+                return;
+            }
+            writePending();
+            if (force) {
+                channel.force(false);
+                durable = written;
+            }
+            if (segmentBytes >= SEGMENT_SIZE) {
+                roll();
+            }
+        } catch (IOException e) {
+            throw fail(e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 交换缓冲区后在appendLock之外写文件，写文件期间其他线程继续追加到另一块缓冲区。调用方持有flushLock
+     */
+    private void writePending() throws IOException {
+        ByteBuffer b;
+        long end;
+        synchronized (appendLock) {
+            b = pending;
+            end = appended;
+            if (b.position() == 0) {
+                return;
+            }
+            pending = spare;
+        }
+        try {
+            b.flip();
+            while (b.hasRemaining()) {
+                segmentBytes += channel.write(b);
+            }
+        } finally {
+            spare = b.clear();
+        }
+        written = end;
+    }
+
+    /**
+     * 封存当前段并打开下一段，调用方持有flushLock
+     */
+    private void roll() throws IOException {
+        writePending();
+        channel.force(false);
+        durable = written;
+        channel.close();
+        sealedBytes += segmentBytes;
+        openSegment(sequence + 1);
+    }
+
+    private IOException fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        return e;
+    }
+
+    private void tick() {
+        try {
+            long lsn;
+            synchronized (appendLock) {
+                lsn = appended;
+            }
+            flush(policy != SyncPolicy.NONE, lsn);
+            if (sealedBytes >= COMPACT_BYTES) {
+                compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            backgroundFailure = e;
+        }
+    }
+
+    /**
+     * 切换到新段后写快照，快照只需要包含新段之前的修改：这些修改在追加日志之前已经作用到map上。
+     * 快照改名完成后删除它覆盖的段与更早的快照
+     */
+    synchronized void compact() throws IOException {
+        long seq;
+        flushLock.lock();
+        try {
+            roll();
+            seq = sequence;
+            sealedBytes = 0L;
+        } catch (IOException e) {
+            throw fail(e);
+        } finally {
+            flushLock.unlock();
+        }
+        Path tmp = snapshotPath(seq, TEMP_SUFFIX);
+        snapshots.write(tmp);
+        Files.move(tmp, snapshotPath(seq, SNAPSHOT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                long s = sequenceOf(name, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+                if (s < 0) {
+                    s = sequenceOf(name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+                }
+                if (s >= 0 && s < seq) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止后台线程，写出并force剩余的记录。后台线程出过错时在这里抛出
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        background.shutdown();
+        try {
+            background.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushLock.lock();
+        try {
+            writePending();
+            channel.force(false);
+            durable = written;
+        } finally {
+            channel.close();
+            flushLock.unlock();
+        }
+        Exception e = backgroundFailure;
+        if (e != null) {
+            throw new IOException("background log task failed", e);
+        }
+    }
+}